@@ -13,10 +13,13 @@ if "%tcp%"=="" set tcp=8080
 set /p sync="Porta TCP Sincronizacao (ex: 8081): "
 if "%sync%"=="" set sync=8081
 
+set /p mode="Modo de transporte (blocking ou nio): "
+if "%mode%"=="" set mode=blocking
+
 echo.
-echo A iniciar Servidor com: BD=%db% - TCP=%tcp% - SYNC=%sync%
+echo A iniciar Servidor com: BD=%db% - TCP=%tcp% - SYNC=%sync% - MODO=%mode%
 echo.
 
-java -cp target\classes;lib\* server.Server %db% %tcp% %sync%
+java -cp target\classes;lib\* server.Server %db% %tcp% %sync% %mode%
 
 pause
\ No newline at end of file
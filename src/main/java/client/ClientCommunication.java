@@ -1,18 +1,38 @@
 package client;
 
 import common.Constants;
+import common.FrameCodec;
 import common.Message;
+import common.MessageCodec;
+import common.ThreadSupport;
 import java.io.*;
 import java.net.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Responsável pela comunicação do cliente com o servidor.
  */
 
 public class ClientCommunication {
-    private Socket socket; // socket TCP para comunicação com o servidor
-    private ObjectOutputStream output; //output stream para enviar objetos para o servidor
-    private ObjectInputStream input; // input stream para receber objetos do servidor
+    // ligacao ao primario: escritas, notificacoes e leituras quando nao ha ligacao de leitura
+    private volatile Link primary;
+    // ligacao de leitura ao servidor indicado pela diretoria (pode ser um backup), null = so primario
+    private volatile Link reader;
+    private final AtomicInteger nextRequestId = new AtomicInteger(); // unico nas duas ligacoes
+    // versao da ultima escrita deste cliente, enviada nas leituras (um backup atrasado espera ou recusa)
+    private final AtomicInteger lastWrite = new AtomicInteger();
+    private final ReentrantLock reconnectLock = new ReentrantLock(); // a leitura e o envio podem detetar a falha
+    // subscricao na diretoria: avisa logo quando o primario muda ou um servidor entra/sai
+    private volatile DatagramSocket subscription;
+    private final ReentrantLock pushLock = new ReentrantLock();
+    private final Condition primaryPushed = pushLock.newCondition();
+    private int pushes = 0; // notificacoes de primario recebidas (pushLock), acorda a reconexao
     private boolean running = true;
     private final ClientUI ui; // referência para a interface do cliente
 
@@ -26,7 +46,10 @@ public class ClientCommunication {
             if (primary == null)
                 return false;
 
-            return connectToAddress(primary);
+            if (!connectToAddress(primary))
+                return false;
+            subscribe();
+            return true;
         } catch (Exception e) {
             return false;
         }
@@ -34,81 +57,208 @@ public class ClientCommunication {
 
     // função auxiliar para conectar ao servidor
     private boolean connectToAddress(InetSocketAddress address) throws IOException { // recebe o endereço do socket do servidor
-        socket = new Socket(address.getAddress(), address.getPort());
-        output = new ObjectOutputStream(socket.getOutputStream());
-        input = new ObjectInputStream(socket.getInputStream());
-
-        // thread para esperar mensagens do servidor
-        new Thread(this::listenForMessages).start();
+        primary = new Link(address, true);
+        connectReader(address);
         return true;
     }
 
-    private void listenForMessages() { // função dada à thread para esperar mensagens do servidor
+    // abre a ligacao de leitura; sem outro servidor (ou se falhar) as leituras vao pela ligacao principal
+    private void connectReader(InetSocketAddress primaryAddress) {
+        reader = null;
+        if (!Constants.CLIENT_READ_ROUTING)
+            return;
+        InetSocketAddress address = askDirectory("GET_READ_SERVER");
+        if (address == null || address.equals(primaryAddress))
+            return;
         try {
-            while (running && !socket.isClosed()) { //se o cliente e a socket estiverem ativos
-                Message msg = (Message) input.readObject(); // utiliza o input stream como buffer para ler a mensagem do servidor
+            reader = new Link(address, false);
+        } catch (IOException e) {
+            System.out.println("Servidor de leitura indisponivel, leituras pelo servidor principal");
+        }
+    }
 
-                //Se for notificação, mostra direto e ignora a queue
-                if (msg.getType() == Message.Type.NOTIFICATION) {
-                    String text = (String) msg.getContent();
-                    ui.showNotification(text);
-                } else {
-                    // Comportamento normal (respostas a pedidos)
-                    ui.handleMessage(msg);
-                }
-            }
-        } catch (Exception e) { //se ocorrer um erro na leitura das mensagens
-            if (running) {
-                ui.onConnectionLost(); //se o cliente estiver ativo, notifica a interface do cliente que a conexão foi perdida
-            }
+    // envia o pedido sem esperar, o future completa quando chegar a resposta com o mesmo requestId
+    // varios pedidos podem estar em curso na mesma ligacao e completar fora de ordem
+    // as leituras vao pela ligacao de leitura, o resto pela ligacao principal
+    public CompletableFuture<Message> sendAsync(Message request) {
+        request.setRequestId(nextRequestId.incrementAndGet());
+        Pending pending = new Pending(request);
+        Link link = primary;
+        if (Message.READ_ONLY.contains(request.getType())) {
+            request.setDbVersion(lastWrite.get());
+            Link read = reader;
+            if (read != null)
+                link = read;
         }
+        link.send(pending);
+        return pending.future;
     }
 
-    public void sendRequest(Message request) { //envia mensagem para o servidor
-        try {
-            output.writeObject(request); // utiliza o output como buffer para enviar a mensagem ao servidor
-            output.flush(); // limpa o output stream
-        } catch (IOException e) { //se ocorrer um erro ao enviar a mensagem
-            ui.onConnectionLost();
+    // desiste de um pedido (ex: timeout), uma resposta tardia passa a ser ignorada
+    public void cancel(Message request) {
+        for (Link link : new Link[] { primary, reader }) {
+            if (link != null)
+                link.pending.remove(request.getRequestId());
         }
     }
 
+    // leitura que ficou sem resposta do servidor de leitura: repete no primario
+    private void retryOnPrimary(Pending pending) {
+        Link link = primary;
+        if (link != null)
+            link.send(pending);
+        else
+            pending.future.completeExceptionally(new IOException("Sem ligacao ao servidor"));
+    }
+
     public void reconnect() { // função para reconectar ao servidor
-        closeConnection(); // fecha a conexão atual
+        if (!reconnectLock.tryLock())
+            return; // outra thread ja esta a reconectar
+        try {
+            reconnectLoop();
+        } finally {
+            reconnectLock.unlock();
+        }
+    }
 
-        int retries = 0;
-        InetSocketAddress lastAddress = null;
+    private void reconnectLoop() {
+        closeConnection(); // fecha a conexão atual
 
-        while (retries < 5 && running) { //tenta reconectar 5 vezes
+        // a diretoria deteta a falha do primario em poucos segundos e indica o substituto;
+        // ate la a ligacao ao servidor que caiu falha logo e volta-se a perguntar
+        long deadline = System.currentTimeMillis() + Constants.CLIENT_RECONNECT_TIMEOUT;
+        long backoff = 250;
+        while (running && System.currentTimeMillis() < deadline) {
+            int seen = pushCount();
             try {
                 InetSocketAddress primary = getPrimaryServer(); //obtem o endereço do servidor primário atual
 
                 if (primary != null) { //se houver servidor primario ativo
-                    if (primary.equals(lastAddress)) {
-                        // Caso seja o mesmo servidor espera 20s até tentar novamente
-                        Thread.sleep(20000);
-                    } else {
-                        Thread.sleep(5000); // se for um servidor diferente espera 5s até tentar novamente
-                    }
-
+                    lastWrite.set(0); // as versoes do novo primario nao continuam as do anterior
                     if (connectToAddress(primary)) { //se conectar com sucesso
                         ui.onReconnected(); //notifica a interface do cliente que reconectou com sucesso
                         return;
                     }
-                    lastAddress = primary;
                 }
             } catch (Exception e) {
                 // Retry
             }
-            retries++;
+            // espera pelo backoff ou ate a diretoria anunciar o novo primario
+            try {
+                awaitPrimaryPush(seen, backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(backoff * 2, 2000);
         }
         ui.onFatalError("Nao foi possivel reconectar nenhum servidor"); // notifica a interface do cliente que não conseguiu reconectar
     }
 
+    private int pushCount() {
+        pushLock.lock();
+        try {
+            return pushes;
+        } finally {
+            pushLock.unlock();
+        }
+    }
+
+    private void awaitPrimaryPush(int seen, long millis) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        pushLock.lock();
+        try {
+            while (pushes == seen && nanos > 0)
+                nanos = primaryPushed.awaitNanos(nanos);
+        } finally {
+            pushLock.unlock();
+        }
+    }
+
+    // subscreve a diretoria uma vez, a lease e renovada pela thread da subscricao
+    private void subscribe() {
+        if (subscription != null)
+            return;
+        try {
+            subscription = new DatagramSocket();
+            subscription.setSoTimeout(Math.max(100, Constants.DIRECTORY_LEASE / 3));
+        } catch (IOException e) {
+            System.out.println("Sem subscricao na diretoria, a reconexao pergunta periodicamente");
+            return;
+        }
+        ThreadSupport.startBackground("directory-subscription", this::listenDirectory);
+    }
+
+    private void listenDirectory() {
+        DatagramSocket socket = subscription;
+        byte[] buffer = new byte[1024];
+        long nextRenew = 0;
+        while (running) {
+            try {
+                if (System.currentTimeMillis() >= nextRenew) { // renova antes de a lease expirar
+                    sendToDirectory(socket, "SUBSCRIBE");
+                    nextRenew = System.currentTimeMillis() + socket.getSoTimeout();
+                }
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                onDirectoryMessage(new String(packet.getData(), 0, packet.getLength()).trim());
+            } catch (SocketTimeoutException e) {
+                // renova no proximo ciclo
+            } catch (Exception e) {
+                if (!running)
+                    return; // socket fechado pelo close()
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // SERVER <ip> <tcp> ...: primario atual (resposta a renovacao ou mudanca)
+    // LEFT/JOINED <ip> <tcp>: um servidor saiu ou entrou
+    private void onDirectoryMessage(String msg) {
+        String[] parts = msg.split(" ");
+        if (parts.length < 3)
+            return; // NO_SERVERS
+        InetSocketAddress address = new InetSocketAddress(parts[1], Integer.parseInt(parts[2]));
+        Link link = primary;
+        switch (parts[0]) {
+            case "SERVER":
+                pushLock.lock();
+                try {
+                    pushes++;
+                    primaryPushed.signalAll();
+                } finally {
+                    pushLock.unlock();
+                }
+                // outro primario com a ligacao ainda aberta (ex: o antigo foi despromovido)
+                if (link != null && !link.closed && !link.address.equals(address)) {
+                    System.out.println("A diretoria indicou outro servidor principal: " + address);
+                    ThreadSupport.startBackground("reconnect", this::reconnect);
+                }
+                break;
+            case "LEFT":
+                Link read = reader;
+                if (read == null || !read.address.equals(address))
+                    break;
+                read.drop(); // as leituras em curso passam para o primario
+                if (link != null && !link.closed)
+                    connectReader(link.address);
+                break;
+            case "JOINED":
+                if (reader == null && link != null && !link.closed)
+                    connectReader(link.address);
+                break;
+            default:
+        }
+    }
+
     private InetSocketAddress getPrimaryServer() { // função para obter o endereço do servidor principal
+        return askDirectory("GET_SERVER");
+    }
+
+    // GET_SERVER (primario) ou GET_READ_SERVER (servidor para as leituras)
+    private InetSocketAddress askDirectory(String msg) {
         try (DatagramSocket socket = new DatagramSocket()) { // cria um socket UDP
             socket.setSoTimeout(5000); // define um timeout de 5 segundos
-            String msg = "GET_SERVER"; //cria mensagem para a diretoria
             byte[] data = msg.getBytes(); //obtem o tamanho da mensagem em bytes
             DatagramPacket packet = new DatagramPacket( // cria um novo packet para enviar a mensagem à diretoria
                     data, data.length, InetAddress.getByName("localhost"), Constants.DIRECTORY_SERVICE_UDP_PORT);
@@ -133,14 +283,158 @@ public class ClientCommunication {
     public void close() { // função para fechar a comunicação do cliente
         running = false;
         closeConnection();
+        DatagramSocket socket = subscription;
+        if (socket != null) {
+            try {
+                sendToDirectory(socket, "UNSUBSCRIBE");
+            } catch (IOException e) {
+                // a lease expira sozinha
+            }
+            socket.close();
+        }
+    }
+
+    private static void sendToDirectory(DatagramSocket socket, String msg) throws IOException {
+        byte[] data = msg.getBytes();
+        socket.send(new DatagramPacket(data, data.length, InetAddress.getByName("localhost"),
+                Constants.DIRECTORY_SERVICE_UDP_PORT));
     }
 
     private void closeConnection() { // função auxiliar para fechar a conexão
-        try {
-            if (socket != null)
+        for (Link link : new Link[] { primary, reader }) {
+            if (link != null)
+                link.close();
+        }
+        reader = null;
+    }
+
+    private static final class Pending {
+        final Message request;
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        Pending(Message request) {
+            this.request = request;
+        }
+    }
+
+    // uma ligacao TCP a um servidor, com o seu codec e os pedidos a espera de resposta
+    private final class Link {
+        private final Socket socket; // socket TCP para comunicação com o servidor
+        private final InetSocketAddress address;
+        private final DataOutputStream output; //output stream para enviar frames para o servidor
+        private final DataInputStream input; // input stream para receber frames do servidor
+        private final MessageCodec codec; // codec negociado com o servidor
+        private final boolean isPrimary;
+        // pedidos a espera de resposta, indexados pelo requestId
+        private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+        private final ReentrantLock sendLock = new ReentrantLock(); // varias threads podem enviar pedidos
+        private volatile boolean closed = false;
+
+        Link(InetSocketAddress address, boolean isPrimary) throws IOException {
+            this.isPrimary = isPrimary;
+            this.address = address;
+            socket = new Socket();
+            socket.connect(address, Constants.CLIENT_CONNECT_TIMEOUT); // servidor em baixo nao prende o cliente
+            socket.setTcpNoDelay(true);
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // negocia o formato das mensagens, o servidor pode recusar o binario e usar serializacao Java
+            MessageCodec preferred = MessageCodec.forId("java".equalsIgnoreCase(Constants.WIRE_CODEC)
+                    ? MessageCodec.CODEC_JAVA : MessageCodec.CODEC_BINARY);
+            codec = FrameCodec.clientHandshake(output, input, preferred);
+
+            // thread para esperar mensagens do servidor
+            ThreadSupport.startBackground(isPrimary ? "server-listener" : "read-listener", this::listenForMessages);
+        }
+
+        private void listenForMessages() { // função dada à thread para esperar mensagens do servidor
+            try {
+                while (running && !socket.isClosed()) { //se o cliente e a socket estiverem ativos
+                    Message msg = FrameCodec.readFrame(input, codec); // le o proximo frame enviado pelo servidor
+
+                    //Se for notificação, mostra direto (so as do primario, o backup repetia-as)
+                    if (msg.getType() == Message.Type.NOTIFICATION) {
+                        if (isPrimary)
+                            ui.showNotification((String) msg.getContent());
+                        continue;
+                    }
+                    // resposta a um pedido, completa o future com o mesmo requestId
+                    Pending p = pending.remove(msg.getRequestId());
+                    if (p == null)
+                        continue; // resposta tardia a um pedido que ja expirou, e ignorada
+                    if (msg.getDbVersion() > 0)
+                        lastWrite.accumulateAndGet(msg.getDbVersion(), Math::max);
+                    if (msg.getType() == Message.Type.NOT_PRIMARY && !isPrimary)
+                        retryOnPrimary(p); // nao serve este pedido ou ainda nao tem a escrita do cliente
+                    else
+                        p.future.complete(msg);
+                }
+            } catch (Exception e) { //se ocorrer um erro na leitura das mensagens
+                onFailure(e);
+            }
+        }
+
+        void send(Pending p) {
+            int id = p.request.getRequestId();
+            pending.put(id, p);
+
+            sendLock.lock();
+            try {
+                FrameCodec.writeFrame(output, codec, p.request); // envia a mensagem ao servidor num frame com tamanho
+            } catch (IOException e) { //se ocorrer um erro ao enviar a mensagem
+                if (pending.remove(id) == null)
+                    return; // ja tratado pelo listener
+                if (isPrimary) {
+                    p.future.completeExceptionally(e);
+                    ui.onConnectionLost();
+                } else {
+                    retryOnPrimary(p);
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        // a ligacao principal caiu: falha os pedidos e reconecta
+        // a ligacao de leitura caiu: as leituras em curso e as seguintes passam para o primario
+        private void onFailure(Exception cause) {
+            boolean current = !closed;
+            close();
+            for (Integer id : pending.keySet()) {
+                Pending p = pending.remove(id);
+                if (p == null)
+                    continue;
+                if (isPrimary || !current)
+                    p.future.completeExceptionally(cause);
+                else
+                    retryOnPrimary(p);
+            }
+            if (!current || !running)
+                return;
+            if (isPrimary) {
+                ui.onConnectionLost(); //se o cliente estiver ativo, notifica a interface do cliente que a conexão foi perdida
+            } else if (reader == this) {
+                reader = null;
+                System.out.println("Ligacao de leitura perdida, leituras pelo servidor principal");
+            }
+        }
+
+        // o servidor saiu da diretoria: fecha como se a ligacao tivesse caido
+        void drop() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ja fechado
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
                 socket.close(); //termina o socket
-        } catch (IOException e) {
-            //em caso de erro ao fechar o socket não faz nada
+            } catch (IOException e) {
+                //em caso de erro ao fechar o socket não faz nada
+            }
         }
     }
 }
@@ -1,5 +1,6 @@
 package client;
 
+import common.Constants;
 import common.Message;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -7,8 +8,8 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Scanner;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /* 
  Responsável pela interface do cliente
@@ -21,9 +22,6 @@ public class ClientUI {
     private String userEmail = null; // email do utilizador atual
     private String userRole = null; // student ou teacher
 
-    // blocking queue para poder esperar por respostas antes de enviar novos pedidos
-    private BlockingQueue<Message> responseQueue = new LinkedBlockingQueue<>();
-
     public static void main(String[] args) {
         new ClientUI().start();
     }
@@ -51,13 +49,6 @@ public class ClientUI {
         comm.close();
     }
 
-    // recebe mensagens do ClientCommunication
-    public void handleMessage(Message msg) {
-        // Adiciona qualquer mensagens à queue de respostas para ser processado
-        // posteriormente
-        responseQueue.offer(msg);
-    }
-
     public void onConnectionLost() {
         System.out.println("\nConexao perdida. A tentar reconectar...");
         comm.reconnect();
@@ -74,10 +65,15 @@ public class ClientUI {
     }
 
     private Message sendRequestAndWait(Message req) { // envia pedido e espera pela resposta
-        comm.sendRequest(req);
+        return await(comm.sendAsync(req), req);
+    }
+
+    // espera pela resposta de um pedido assincrono, devolve null em caso de erro ou timeout
+    private Message await(CompletableFuture<Message> future, Message req) {
         try {
-            return responseQueue.take(); // espera até receber uma resposta
-        } catch (InterruptedException e) {
+            return future.get(Constants.CLIENT_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            comm.cancel(req);
             return null;
         }
     }
@@ -169,6 +165,7 @@ public class ClientUI {
         System.out.println("5. Ver Respostas (Relatório)");
         System.out.println("6. Exportar CSV");
         System.out.println("7. Editar Perfil");
+        System.out.println("8. Painel da pergunta (lista, respostas e CSV)");
         System.out.println("0. Logout");
 
         String opt = scanner.nextLine();
@@ -194,12 +191,15 @@ public class ClientUI {
             case "7":
                 editProfile();
                 break;
+            case "8":
+                questionDashboard();
+                break;
             case "0":
                 userEmail = null;
                 userRole = null;
                 break;
             default:
-                System.out.println("Digita uma opcao valida (1, 2, 3, 4, 5, 6, 7 ou 0).");
+                System.out.println("Digita uma opcao valida (1, 2, 3, 4, 5, 6, 7, 8 ou 0).");
         }
     }
 
@@ -309,6 +309,53 @@ public class ClientUI {
         }
     }
 
+    // painel do docente: os tres pedidos seguem juntos na mesma ligacao (um RTT em vez de tres)
+    private void questionDashboard() {
+        System.out.print("Codigo da pergunta: ");
+        String code = scanner.nextLine();
+
+        Message listReq = new Message(Message.Type.LIST_QUESTIONS, "ALL");
+        Message answersReq = new Message(Message.Type.GET_QUESTION_ANSWERS, code);
+        Message csvReq = new Message(Message.Type.EXPORT_CSV, code);
+        CompletableFuture<Message> list = comm.sendAsync(listReq);
+        CompletableFuture<Message> answers = comm.sendAsync(answersReq);
+        CompletableFuture<Message> csv = comm.sendAsync(csvReq);
+
+        Message listResponse = await(list, listReq);
+        if (listResponse != null && listResponse.getType() == Message.Type.LIST_QUESTIONS_RESPONSE) {
+            @SuppressWarnings("unchecked")
+            List<String> questions = (List<String>) listResponse.getContent();
+            System.out.println("\n--- Perguntas ---");
+            for (String q : questions)
+                System.out.println(q);
+        }
+
+        Message answersResponse = await(answers, answersReq);
+        if (answersResponse != null && answersResponse.getType() == Message.Type.GET_QUESTION_ANSWERS_RESPONSE) {
+            @SuppressWarnings("unchecked")
+            List<String> report = (List<String>) answersResponse.getContent();
+            if (report == null) {
+                System.out.println("Pergunta nao encontrada.");
+            } else {
+                System.out.println("\n--- Respostas ---");
+                for (String line : report)
+                    System.out.println(line);
+            }
+        }
+
+        Message csvResponse = await(csv, csvReq);
+        if (csvResponse != null && csvResponse.getType() == Message.Type.EXPORT_CSV_RESPONSE
+                && csvResponse.getContent() != null) {
+            String filename = "exportado_" + code + ".csv";
+            try (FileWriter fw = new FileWriter(filename)) {
+                fw.write((String) csvResponse.getContent());
+                System.out.println("Ficheiro CSV exportado: " + filename);
+            } catch (IOException e) {
+                System.out.println("Erro ao criar ficheiro CSV: " + e.getMessage());
+            }
+        }
+    }
+
     private void deleteQuestion() {
         System.out.print("Codigo da pergunta a eliminar: ");
         String code = scanner.nextLine();
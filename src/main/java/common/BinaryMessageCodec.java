@@ -0,0 +1,270 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Codec binario compacto para Message
+    Formato: <versao byte> <tipo varint> <request id varint> <versao da bd varint> <kind byte> <conteudo>
+    (a versao 1 nao tinha request id, a 2 nao tinha a versao da base de dados)
+    - inteiros em varint (7 bits por byte)
+    - strings em UTF-8 precedidas do tamanho + 1 (0 = null)
+    - arrays e listas precedidos do numero de elementos
+    Cada Message.Type tem um schema com os tipos de conteudo permitidos,
+    o conteudo null e sempre aceite (respostas de erro).
+    Novos Message.Type devem ser acrescentados no fim do enum, o tipo vai pelo ordinal.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final BinaryMessageCodec INSTANCE = new BinaryMessageCodec();
+    public static final int FORMAT_VERSION = 3;
+
+    // tipos de conteudo suportados
+    enum Kind {
+        NULL, BOOLEAN, STRING, STRING_ARRAY, STRING_LIST
+    }
+
+    private static final Map<Message.Type, List<Kind>> SCHEMA = new EnumMap<>(Message.Type.class);
+
+    static {
+        schema(Message.Type.LOGIN_REQUEST, Kind.STRING_ARRAY);
+        schema(Message.Type.LOGIN_RESPONSE, Kind.STRING);
+        schema(Message.Type.REGISTER_REQUEST, Kind.STRING_ARRAY);
+        schema(Message.Type.REGISTER_RESPONSE, Kind.BOOLEAN);
+        schema(Message.Type.CREATE_QUESTION, Kind.STRING_ARRAY);
+        schema(Message.Type.CREATE_QUESTION_RESPONSE, Kind.BOOLEAN);
+        schema(Message.Type.LIST_QUESTIONS, Kind.STRING);
+        schema(Message.Type.LIST_QUESTIONS_RESPONSE, Kind.STRING_LIST);
+        schema(Message.Type.GET_QUESTIONS, Kind.STRING);
+        schema(Message.Type.GET_QUESTIONS_RESPONSE, Kind.STRING, Kind.STRING_ARRAY); // erro ou [enunciado, opcoes]
+        schema(Message.Type.GET_QUESTION, Kind.STRING);
+        schema(Message.Type.SUBMIT_ANSWER, Kind.STRING_ARRAY);
+        schema(Message.Type.SUBMIT_ANSWER_RESPONSE, Kind.BOOLEAN);
+        schema(Message.Type.HEARTBEAT, Kind.STRING);
+        schema(Message.Type.DB_SYNC_REQUEST, Kind.STRING);
+        schema(Message.Type.DB_SYNC_RESPONSE, Kind.STRING);
+        schema(Message.Type.EXPORT_CSV, Kind.STRING);
+        schema(Message.Type.EXPORT_CSV_RESPONSE, Kind.STRING);
+        schema(Message.Type.EDIT_QUESTION, Kind.STRING_ARRAY);
+        schema(Message.Type.EDIT_QUESTION_RESPONSE, Kind.BOOLEAN);
+        schema(Message.Type.DELETE_QUESTION, Kind.STRING);
+        schema(Message.Type.DELETE_QUESTION_RESPONSE, Kind.STRING);
+        schema(Message.Type.GET_QUESTION_ANSWERS, Kind.STRING);
+        schema(Message.Type.GET_QUESTION_ANSWERS_RESPONSE, Kind.STRING_LIST);
+        schema(Message.Type.GET_STUDENT_HISTORY, Kind.STRING_ARRAY);
+        schema(Message.Type.GET_STUDENT_HISTORY_RESPONSE, Kind.STRING_LIST);
+        schema(Message.Type.NOTIFICATION, Kind.STRING);
+        schema(Message.Type.EDIT_PROFILE, Kind.STRING_ARRAY);
+        schema(Message.Type.EDIT_PROFILE_RESPONSE, Kind.STRING);
+        schema(Message.Type.NOT_PRIMARY, Kind.STRING);
+
+        for (Message.Type type : Message.Type.values()) {
+            if (!SCHEMA.containsKey(type))
+                throw new IllegalStateException("Sem schema binario para " + type);
+        }
+    }
+
+    private static void schema(Message.Type type, Kind... kinds) {
+        SCHEMA.put(type, List.of(kinds));
+    }
+
+    private BinaryMessageCodec() {
+    }
+
+    @Override
+    public byte id() {
+        return CODEC_BINARY;
+    }
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        Object content = msg.getContent();
+        Kind kind = kindOf(content);
+        if (kind != Kind.NULL && !SCHEMA.get(msg.getType()).contains(kind)) {
+            throw new IOException("Conteudo " + kind + " nao permitido para " + msg.getType());
+        }
+
+        Writer w = new Writer();
+        w.write(FORMAT_VERSION);
+        w.writeVarint(msg.getType().ordinal());
+        w.writeVarint(Integer.toUnsignedLong(msg.getRequestId()));
+        w.writeVarint(Integer.toUnsignedLong(msg.getDbVersion()));
+        w.write(kind.ordinal());
+        switch (kind) {
+            case BOOLEAN:
+                w.write((Boolean) content ? 1 : 0);
+                break;
+            case STRING:
+                w.writeString((String) content);
+                break;
+            case STRING_ARRAY: {
+                String[] array = (String[]) content;
+                w.writeVarint(array.length);
+                for (String s : array)
+                    w.writeString(s);
+                break;
+            }
+            case STRING_LIST: {
+                List<?> list = (List<?>) content;
+                w.writeVarint(list.size());
+                for (Object s : list)
+                    w.writeString((String) s);
+                break;
+            }
+            default:
+                break;
+        }
+        return w.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] data, int offset, int length) throws IOException {
+        Reader r = new Reader(data, offset, length);
+        int version = r.read();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Versao do formato binario nao suportada: " + version);
+        }
+        int typeIndex = r.readVarint();
+        int requestId = version >= 2 ? (int) r.readVarLong() : 0;
+        int dbVersion = version >= 3 ? (int) r.readVarLong() : 0;
+        int kindIndex = r.read();
+        if (typeIndex >= Message.Type.values().length || kindIndex >= Kind.values().length) {
+            throw new IOException("Mensagem binaria invalida");
+        }
+        Message.Type type = Message.Type.values()[typeIndex];
+        Kind kind = Kind.values()[kindIndex];
+        if (kind != Kind.NULL && !SCHEMA.get(type).contains(kind)) {
+            throw new IOException("Conteudo " + kind + " nao permitido para " + type);
+        }
+
+        Object content = null;
+        switch (kind) {
+            case BOOLEAN:
+                content = r.read() != 0;
+                break;
+            case STRING:
+                content = r.readString();
+                break;
+            case STRING_ARRAY: {
+                String[] array = new String[r.readCount()];
+                for (int i = 0; i < array.length; i++)
+                    array[i] = r.readString();
+                content = array;
+                break;
+            }
+            case STRING_LIST: {
+                int size = r.readCount();
+                List<String> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(r.readString());
+                content = list;
+                break;
+            }
+            default:
+                break;
+        }
+        Message msg = new Message(type, content, requestId);
+        msg.setDbVersion(dbVersion);
+        return msg;
+    }
+
+    private static Kind kindOf(Object content) throws IOException {
+        if (content == null)
+            return Kind.NULL;
+        if (content instanceof Boolean)
+            return Kind.BOOLEAN;
+        if (content instanceof String)
+            return Kind.STRING;
+        if (content instanceof String[])
+            return Kind.STRING_ARRAY;
+        if (content instanceof List)
+            return Kind.STRING_LIST;
+        throw new IOException("Conteudo sem representacao binaria: " + content.getClass().getName());
+    }
+
+    // buffer de escrita com varints e strings UTF-8
+    static final class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super(128);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1L);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    // leitura sobre um array de bytes com verificacao de limites
+    static final class Reader {
+        private final byte[] data;
+        private int pos;
+        private final int end;
+
+        Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int read() throws IOException {
+            if (pos >= end)
+                throw new IOException("Mensagem binaria truncada");
+            return data[pos++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Varint invalido");
+        }
+
+        int readVarint() throws IOException {
+            long value = readVarLong();
+            if (value > Integer.MAX_VALUE)
+                throw new IOException("Varint fora de limites");
+            return (int) value;
+        }
+
+        // numero de elementos, limitado pelos bytes restantes para evitar alocacoes enormes
+        int readCount() throws IOException {
+            int count = readVarint();
+            if (count > end - pos)
+                throw new IOException("Numero de elementos invalido: " + count);
+            return count;
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length == 0)
+                return null;
+            length--;
+            if (length > end - pos)
+                throw new IOException("String truncada");
+            String s = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -4,7 +4,101 @@ public class Constants {
     public static final int DIRECTORY_SERVICE_UDP_PORT = 5001;
     public static final String MULTICAST_GROUP = "230.30.30.30";
     public static final int MULTICAST_PORT = 3030;
-    public static final int SERVER_HEARTBEAT_INTERVAL = 5000;
-    public static final int DIRECTORY_SERVICE_TIMEOUT = 17000;
+    public static final int SERVER_HEARTBEAT_INTERVAL = Integer.getInteger("pd.heartbeat.interval", 1000);
+    public static final int DIRECTORY_SERVICE_TIMEOUT = 17000; // limite fixo, o detetor phi costuma ser mais rapido
+
+    // diretoria: detetor de falhas phi-accrual sobre os intervalos dos heartbeats
+    // (limiar de suspeita, intervalos guardados e desvio padrao minimo em ms)
+    public static final double DIRECTORY_PHI_THRESHOLD =
+            Double.parseDouble(System.getProperty("pd.directory.phi", "8"));
+    public static final int DIRECTORY_PHI_WINDOW = 100;
+    public static final int DIRECTORY_PHI_MIN_STDDEV = Integer.getInteger("pd.directory.phi.minstd", 200);
+    public static final int DIRECTORY_MONITOR_INTERVAL = 100; // ms entre verificacoes
+    // diretoria: workers que tratam os packets, fila entre o loop de rececao e os workers
+    // e se cada packet recebido e escrito na consola (-Dpd.directory.verbose=true)
+    public static final int DIRECTORY_WORKERS = Integer.getInteger("pd.directory.workers", 4);
+    public static final int DIRECTORY_QUEUE = Integer.getInteger("pd.directory.queue", 1024);
+    public static final boolean DIRECTORY_VERBOSE = Boolean.getBoolean("pd.directory.verbose");
+    // subscricoes na diretoria (SUBSCRIBE): duracao da lease em ms, renovada a cada terco
+    public static final int DIRECTORY_LEASE = Integer.getInteger("pd.directory.lease", 9000);
     public static final int CLIENT_CONNECTION_TIMEOUT = 30000;
+    // cliente: tempo para abrir a ligacao TCP e total para encontrar o novo primario
+    public static final int CLIENT_CONNECT_TIMEOUT = 2000;
+    public static final int CLIENT_RECONNECT_TIMEOUT = 60000;
+
+    // modo de execucao das threads por cliente/pedido: "platform" ou "virtual" (-Dpd.threads=virtual)
+    public static final String THREAD_MODE = System.getProperty("pd.threads", "platform");
+
+    // codec preferido pelo cliente: "binary" ou "java" (-Dpd.codec=java)
+    public static final String WIRE_CODEC = System.getProperty("pd.codec", "binary");
+
+    // numero maximo de pedidos em curso por ligacao (pipelining)
+    public static final int MAX_PIPELINED_REQUESTS = 32;
+    // threads e fila dos pedidos em modo blocking (pool partilhada por todas as ligacoes)
+    public static final int REQUEST_THREADS = Integer.getInteger("pd.request.threads", 64);
+    public static final int REQUEST_QUEUE = Integer.getInteger("pd.request.queue", 1024);
+
+    // fila de saida por cliente e politica quando enche: "drop" descarta notificacoes,
+    // "disconnect" desliga o cliente lento (respostas a pedidos nunca sao descartadas)
+    public static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("pd.outbound.capacity", 256);
+    public static final String OUTBOUND_OVERFLOW_POLICY = System.getProperty("pd.outbound.policy", "drop");
+    // uma mensagem a ser escrita ha mais que isto (cliente que nao le): o cliente e desligado
+    public static final int OUTBOUND_WRITE_STALL = Integer.getInteger("pd.outbound.stall", 5000);
+
+    // intervalo do relatorio de metricas do servidor (0 desativa)
+    public static final int METRICS_REPORT_INTERVAL = Integer.getInteger("pd.metrics.interval", 30000);
+
+    // base de dados: ligacoes de leitura na pool e tempos de espera (ms)
+    public static final int DB_READ_POOL_SIZE = Integer.getInteger("pd.db.readers", 8);
+    public static final int DB_POOL_WAIT_TIMEOUT = 10000;
+    public static final int DB_BUSY_TIMEOUT = 5000;
+
+    // group commit: escritas concorrentes sao juntas numa so transacao
+    // a janela (microssegundos) so e usada quando ja ha outras escritas a espera;
+    // com 0 o lote e o que se acumulou durante o commit anterior
+    public static final int GROUP_COMMIT_WINDOW_US = Integer.getInteger("pd.commit.window", 0);
+    public static final int GROUP_COMMIT_MAX_BATCH = Integer.getInteger("pd.commit.batch", 256);
+    // tempo maximo (ms) que um pedido espera pelo commit da sua escrita
+    public static final int GROUP_COMMIT_TIMEOUT = Integer.getInteger("pd.commit.timeout", 10000);
+
+    // log de replicacao: versoes mantidas para o catch-up dos backups (0 guarda tudo)
+    // e de quantas em quantas versoes sao apagadas as entradas antigas
+    public static final int REPLICATION_LOG_RETAIN = Integer.getInteger("pd.replog.retain", 100000);
+    public static final int REPLICATION_LOG_COMPACT_EVERY = Integer.getInteger("pd.replog.compact", 1000);
+
+    // replicacao: ultimas escritas guardadas pelo primario para retransmissao
+    // e escritas fora de ordem que um backup guarda enquanto recupera uma lacuna
+    public static final int REPLICATION_RING_SIZE = Integer.getInteger("pd.replication.ring", 4096);
+    public static final int REPLICATION_MAX_PENDING = Integer.getInteger("pd.replication.pending", 8192);
+    // tempo (ms) que um backup pode ficar atras da versao anunciada no heartbeat do primario
+    // antes de pedir retransmissao; o heartbeat anuncia o commit antes de o multicast sair
+    public static final int REPLICATION_LAG_GRACE = Integer.getInteger("pd.replication.lag_grace", 500);
+    // tamanho maximo de um datagrama com um lote de escritas (abaixo do MTU da rede)
+    public static final int REPLICATION_DATAGRAM_SIZE = Integer.getInteger("pd.replication.mtu", 1400);
+    // escritas maiores vao em fragmentos ate este limite (bytes), acima seguem so por TCP;
+    // fragmentos de uma escrita incompleta sao descartados ao fim do tempo (ms)
+    public static final int REPLICATION_MULTICAST_LIMIT = Integer.getInteger("pd.replication.fragment.limit", 1 << 20);
+    public static final int REPLICATION_FRAGMENT_TIMEOUT = Integer.getInteger("pd.replication.fragment.timeout", 2000);
+    // tamanho maximo (bytes) de uma escrita codificada no log de replicacao, acima do limite do multicast:
+    // o primario recusa escritas maiores e o catch-up por TCP aceita entradas ate este tamanho
+    public static final int REPLICATION_ENTRY_LIMIT = Integer.getInteger("pd.replication.entry.limit", 16 << 20);
+
+    // copia completa: um backup que ja tem uma base de dados so recebe as paginas diferentes
+    public static final boolean SYNC_DELTA = Boolean.parseBoolean(System.getProperty("pd.sync.delta", "true"));
+
+    // cliente: leituras numa segunda ligacao a um servidor escolhido pela diretoria
+    // (pode ser um backup), as escritas seguem sempre para o primario
+    public static final boolean CLIENT_READ_ROUTING =
+            Boolean.parseBoolean(System.getProperty("pd.client.reads", "true"));
+    // backup: tempo maximo (ms) que uma leitura espera pela ultima escrita do cliente,
+    // depois responde NOT_PRIMARY e o cliente repete a leitura no primario
+    public static final int READ_VERSION_WAIT = Integer.getInteger("pd.read.wait", 100);
+
+    // numero maximo de perguntas na cache do servidor
+    public static final int QUESTION_CACHE_SIZE = Integer.getInteger("pd.cache.questions", 1024);
+
+    // modo de transporte NIO do servidor
+    public static final int NIO_IO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int NIO_WORKER_THREADS = Integer.getInteger("pd.nio.workers", 16);
+    public static final int NIO_WORKER_QUEUE = Integer.getInteger("pd.nio.queue", 1024);
 }
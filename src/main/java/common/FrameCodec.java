@@ -0,0 +1,102 @@
+package common;
+
+import java.io.*;
+
+/*
+    Classe auxiliar para enquadrar mensagens no socket TCP
+    Cada frame tem o formato: <tamanho int32> <bytes da mensagem>
+    O tamanho permite ao servidor em modo NIO saber quando tem uma mensagem completa
+
+    No inicio da ligacao o cliente envia um frame HELLO com os codecs que suporta
+    (por ordem de preferencia) e o servidor responde com o codec escolhido:
+        HELLO:  'P' 'D' <versao> <n> <codec 1> ... <codec n>
+        REPLY:  'P' 'D' <versao> <codec>
+    Um primeiro frame sem HELLO e tratado como serializacao Java (clientes antigos).
+ */
+public class FrameCodec {
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 1024 * 1024; // 1MB por mensagem
+    public static final int PROTOCOL_VERSION = 1;
+    private static final byte MAGIC_0 = 'P';
+    private static final byte MAGIC_1 = 'D';
+
+    private FrameCodec() {
+    }
+
+    // escreve um frame completo no stream
+    public static void writeFrame(DataOutputStream out, MessageCodec codec, Message msg) throws IOException {
+        writeRawFrame(out, codec.encode(msg));
+    }
+
+    // le um frame completo do stream, bloqueia ate ter a mensagem toda
+    public static Message readFrame(DataInputStream in, MessageCodec codec) throws IOException {
+        byte[] payload = readRawFrame(in);
+        return codec.decode(payload, 0, payload.length);
+    }
+
+    public static void writeRawFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    public static byte[] readRawFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Tamanho de frame invalido: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    // ---- negociacao do codec ----
+
+    public static byte[] hello(byte... codecs) {
+        byte[] frame = new byte[4 + codecs.length];
+        frame[0] = MAGIC_0;
+        frame[1] = MAGIC_1;
+        frame[2] = PROTOCOL_VERSION;
+        frame[3] = (byte) codecs.length;
+        System.arraycopy(codecs, 0, frame, 4, codecs.length);
+        return frame;
+    }
+
+    public static boolean isHello(byte[] frame, int offset, int length) {
+        return length >= 4 && frame[offset] == MAGIC_0 && frame[offset + 1] == MAGIC_1;
+    }
+
+    // escolhe o primeiro codec da lista do cliente que o servidor conhece
+    public static MessageCodec negotiate(byte[] frame, int offset, int length) {
+        int count = Math.min(frame[offset + 3], length - 4);
+        for (int i = 0; i < count; i++) {
+            MessageCodec codec = MessageCodec.forId(frame[offset + 4 + i]);
+            if (codec != null)
+                return codec;
+        }
+        return JavaMessageCodec.INSTANCE;
+    }
+
+    public static byte[] helloReply(MessageCodec codec) {
+        return new byte[] { MAGIC_0, MAGIC_1, PROTOCOL_VERSION, codec.id() };
+    }
+
+    // lado do cliente: envia HELLO e devolve o codec aceite pelo servidor
+    public static MessageCodec clientHandshake(DataOutputStream out, DataInputStream in, MessageCodec preferred)
+            throws IOException {
+        if (preferred.id() == MessageCodec.CODEC_JAVA) {
+            writeRawFrame(out, hello(MessageCodec.CODEC_JAVA));
+        } else {
+            writeRawFrame(out, hello(preferred.id(), MessageCodec.CODEC_JAVA));
+        }
+        byte[] reply = readRawFrame(in);
+        if (!isHello(reply, 0, reply.length)) {
+            throw new IOException("Resposta de negociacao invalida");
+        }
+        MessageCodec codec = MessageCodec.forId(reply[3]);
+        if (codec == null) {
+            throw new IOException("Codec desconhecido: " + reply[3]);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,36 @@
+package common;
+
+import java.io.*;
+
+/*
+    Codec de compatibilidade: cada frame leva a Message serializada com ObjectOutputStream
+ */
+public class JavaMessageCodec implements MessageCodec {
+    public static final JavaMessageCodec INSTANCE = new JavaMessageCodec();
+
+    private JavaMessageCodec() {
+    }
+
+    @Override
+    public byte id() {
+        return CODEC_JAVA;
+    }
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(msg);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] data, int offset, int length) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Mensagem invalida", e);
+        }
+    }
+}
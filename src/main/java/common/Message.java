@@ -1,6 +1,8 @@
 package common;
 
 import java.io.Serializable;
+import java.util.EnumSet;
+import java.util.Set;
 
 /*  
     Classe auxiliar para facilitar a comunicação entre o cliente e o servidor
@@ -37,17 +39,32 @@ public class Message implements Serializable {
         GET_STUDENT_HISTORY_RESPONSE,
         NOTIFICATION,
         EDIT_PROFILE,
-        EDIT_PROFILE_RESPONSE
+        EDIT_PROFILE_RESPONSE,
+        NOT_PRIMARY // resposta de um backup a uma escrita (conteudo: ip:porta do primario ou null)
     }
 
+    // pedidos so de leitura, servidos tambem pelos backups
+    public static final Set<Type> READ_ONLY = EnumSet.of(Type.LIST_QUESTIONS, Type.GET_QUESTION,
+            Type.GET_STUDENT_HISTORY, Type.GET_QUESTION_ANSWERS, Type.EXPORT_CSV);
+
     private Type type; // tipo da mensagem
     private Object content; // conteudo da mensagem
+    private int requestId; // id do pedido, repetido na resposta (0 = mensagem sem pedido, ex: notificacao)
+    // versao da base de dados: na resposta a uma escrita a versao gravada, num pedido de leitura
+    // a ultima escrita do cliente que a leitura tem de ver (0 = sem requisito)
+    private int dbVersion;
 
     public Message(Type type, Object content) {
         this.type = type;
         this.content = content;
     }
 
+    public Message(Type type, Object content, int requestId) {
+        this.type = type;
+        this.content = content;
+        this.requestId = requestId;
+    }
+
     public Type getType() {
         return type;
     }
@@ -55,4 +72,20 @@ public class Message implements Serializable {
     public Object getContent() {
         return content;
     }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    public int getDbVersion() {
+        return dbVersion;
+    }
+
+    public void setDbVersion(int dbVersion) {
+        this.dbVersion = dbVersion;
+    }
 }
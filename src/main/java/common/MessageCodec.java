@@ -0,0 +1,29 @@
+package common;
+
+import java.io.IOException;
+
+/*
+    Formato usado para converter uma Message em bytes dentro de um frame
+    O codec e escolhido no inicio de cada ligacao (ver FrameCodec.handshake)
+ */
+public interface MessageCodec {
+    byte CODEC_JAVA = 0; // serializacao Java, usada como fallback
+    byte CODEC_BINARY = 1; // formato binario compacto
+
+    byte id();
+
+    byte[] encode(Message msg) throws IOException;
+
+    Message decode(byte[] data, int offset, int length) throws IOException;
+
+    static MessageCodec forId(byte id) {
+        switch (id) {
+            case CODEC_JAVA:
+                return JavaMessageCodec.INSTANCE;
+            case CODEC_BINARY:
+                return BinaryMessageCodec.INSTANCE;
+            default:
+                return null;
+        }
+    }
+}
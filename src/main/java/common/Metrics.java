@@ -0,0 +1,47 @@
+package common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+    Registo simples de metricas (contadores e gauges) de um processo
+    Os contadores sao LongAdder para nao criar contencao nos caminhos quentes,
+    os gauges sao calculados apenas quando o relatorio e gerado.
+ */
+public class Metrics {
+    private final String name;
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    public LongAdder counter(String key) {
+        return counters.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    public void gauge(String key, LongSupplier supplier) {
+        gauges.put(key, supplier);
+    }
+
+    public long get(String key) {
+        LongAdder counter = counters.get(key);
+        if (counter != null)
+            return counter.sum();
+        LongSupplier gauge = gauges.get(key);
+        return gauge != null ? gauge.getAsLong() : 0;
+    }
+
+    // linha unica com todos os valores, ordenados pelo nome
+    public String report() {
+        StringBuilder sb = new StringBuilder("[METRICAS ").append(name).append("]");
+        for (Map.Entry<String, LongAdder> e : counters.entrySet())
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue().sum());
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue().getAsLong());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Ponto unico de criacao de threads do projeto
+    Com -Dpd.threads=virtual as tarefas por cliente/pedido correm em virtual threads,
+    caso contrario usam platform threads como antes.
+    Os loops de fundo (timers, heartbeats, listeners) sao sempre platform threads.
+ */
+public class ThreadSupport {
+
+    private ThreadSupport() {
+    }
+
+    public static boolean virtualThreads() {
+        return "virtual".equalsIgnoreCase(Constants.THREAD_MODE);
+    }
+
+    // fabrica para loops de longa duracao
+    public static ThreadFactory backgroundFactory(String name) {
+        return Thread.ofPlatform().name(name).factory();
+    }
+
+    // fabrica para tarefas curtas ou por ligacao (clientes, pedidos de sync, packets)
+    public static ThreadFactory taskFactory(String prefix) {
+        if (virtualThreads()) {
+            return Thread.ofVirtual().name(prefix + "-", 0).factory();
+        }
+        return Thread.ofPlatform().name(prefix + "-", 0).factory();
+    }
+
+    // inicia um loop de fundo numa thread propria
+    public static Thread startBackground(String name, Runnable task) {
+        Thread thread = backgroundFactory(name).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    // executor com uma thread por tarefa (virtual ou platform conforme o modo)
+    public static ExecutorService newTaskExecutor(String prefix) {
+        if (virtualThreads()) {
+            return Executors.newThreadPerTaskExecutor(taskFactory(prefix));
+        }
+        return Executors.newCachedThreadPool(taskFactory(prefix));
+    }
+
+    // executor limitado do modo blocking: com a fila cheia a thread de leitura da ligacao
+    // corre a tarefa, o que trava a leitura de novos pedidos dessa ligacao
+    // em modo virtual continua uma thread por tarefa, o limite sao os pedidos em curso por ligacao
+    public static ExecutorService newBoundedExecutor(String prefix, int threads, int queue) {
+        if (virtualThreads()) {
+            return Executors.newThreadPerTaskExecutor(taskFactory(prefix));
+        }
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue),
+                taskFactory(prefix), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+}
@@ -1,23 +1,75 @@
 package directory;
 
 import common.Constants;
+import common.Metrics;
+import common.ThreadSupport;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.Iterator;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
     Classe que representa o serviço de diretoria
+    O servidor principal fica fixo enquanto estiver vivo. Quando falha (detetor phi-accrual
+    sobre os heartbeats, ou o timeout fixo) e escolhido o servidor vivo com a versao mais
+    alta da base de dados, e o mais antigo em caso de empate. Os servidores perguntam
+    periodicamente quem e o principal e promovem-se ou mudam de primario sozinhos.
+    Os prazos dos servidores estao numa roda temporal rearmada a cada heartbeat, a verificacao
+    so olha para os prazos que passaram. As leituras escolhem sobre um array dos servidores
+    vivos, refeito so quando um servidor entra ou sai.
+    Clientes e servidores subscrevem (SUBSCRIBE) com uma lease que renovam; a cada mudanca
+    de primario ou entrada/saida de um servidor a diretoria envia logo a novidade a todos.
+    Uma thread recebe os packets no DatagramChannel, cada um num buffer proprio tirado
+    de uma pool, e entrega-os a uma pool fixa de workers que devolve o buffer no fim.
  */
 public class DirectoryService {
     private static final int MAX_PACKET_SIZE = 1024;
     // Mapa de servidores ativos, chave = ip:porta, valor = ServerInfo
     private final ConcurrentHashMap<String, ServerInfo> servers = new ConcurrentHashMap<>();
+    // os mesmos servidores num array para a escolha de leitura em O(1) (copy-on-write)
+    private volatile ServerInfo[] members = new ServerInfo[0];
+    private final ReentrantLock membersLock = new ReentrantLock();
+    // prazos dos heartbeats, um slot por verificacao e uma volta maior que o timeout fixo
+    private final HeartbeatWheel wheel = new HeartbeatWheel(Constants.DIRECTORY_MONITOR_INTERVAL,
+            Constants.DIRECTORY_SERVICE_TIMEOUT / Constants.DIRECTORY_MONITOR_INTERVAL + 2, System.currentTimeMillis());
+    private final ReentrantLock electionLock = new ReentrantLock();
+    private volatile String primaryKey; // servidor principal atual (ip:porta)
+    // failover em curso: ultimo heartbeat do primario que falhou, ate o novo se anunciar como principal
+    private volatile long failoverStart = 0;
+    private final Metrics metrics = new Metrics("diretoria");
+    private final AtomicLong lastDetection = new AtomicLong(); // ms desde o ultimo heartbeat ate a remocao
+    private final AtomicLong lastFailover = new AtomicLong(); // ms ate o novo primario estar ativo
+    // subscritores (endereco UDP) e o fim da lease de cada um
+    private final ConcurrentHashMap<SocketAddress, Long> subscribers = new ConcurrentHashMap<>();
+    // uma thread envia as notificacoes, um worker nao fica preso a percorrer os subscritores
+    private final ExecutorService pushExecutor =
+            Executors.newSingleThreadExecutor(ThreadSupport.backgroundFactory("directory-push"));
+    private volatile DatagramChannel channel; // tambem usado pelas notificacoes
     private boolean running = true;
+    // buffers livres para a rececao, um packet fica no seu buffer ate o worker o tratar
+    private final ArrayBlockingQueue<ByteBuffer> buffers =
+            new ArrayBlockingQueue<>(Constants.DIRECTORY_WORKERS + Constants.DIRECTORY_QUEUE + 1);
+    // pool limitada como no NioTransport, com a fila cheia o loop de rececao trata o packet
+    // e os seguintes esperam no buffer do socket
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(Constants.DIRECTORY_WORKERS,
+            Constants.DIRECTORY_WORKERS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Constants.DIRECTORY_QUEUE),
+            ThreadSupport.taskFactory("directory-worker"), new ThreadPoolExecutor.CallerRunsPolicy());
 
     public static void main(String[] args) {
         new DirectoryService().start();
@@ -25,39 +77,79 @@ public class DirectoryService {
 
     public void start() {
         System.out.println("Servico de diretoria iniciado na porta " + Constants.DIRECTORY_SERVICE_UDP_PORT);
+        metrics.gauge("diretoria.servidores", servers::size);
+        metrics.gauge("diretoria.detecao_ultima_ms", lastDetection::get);
+        metrics.gauge("diretoria.failover_ultimo_ms", lastFailover::get);
+        metrics.gauge("diretoria.fila_packets", () -> workers.getQueue().size());
+        metrics.gauge("diretoria.subscritores", subscribers::size);
 
         // inicia thread para gerir os heartbeats
-        new Thread(this::monitorHeartbeats).start();
+        ThreadSupport.startBackground("heartbeat-monitor", this::monitorHeartbeats);
 
-        // inicia socket para receber packets com port UDP pré definido
-        try (DatagramSocket socket = new DatagramSocket(Constants.DIRECTORY_SERVICE_UDP_PORT)) {
-            byte[] buffer = new byte[MAX_PACKET_SIZE];
+        // inicia canal para receber packets com port UDP pré definido (modo bloqueante)
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(new InetSocketAddress(Constants.DIRECTORY_SERVICE_UDP_PORT));
+            this.channel = channel;
 
             while (running) { // loop da thread principal apenas para receber packets
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                ByteBuffer buffer = acquireBuffer();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
 
-                // cria thread para processar o packet
-                new Thread(() -> handleRequest(socket, packet)).start();
+                // o worker fica com o buffer, o proximo receive usa outro
+                workers.execute(() -> {
+                    try {
+                        handleRequest(channel, buffer, (InetSocketAddress) from);
+                    } finally {
+                        releaseBuffer(buffer);
+                    }
+                });
             }
-        } catch (IOException e) { // fecha socket e lança exception basico em caso de erro
+        } catch (IOException e) { // fecha canal e lança exception basico em caso de erro
             e.printStackTrace();
+        } finally {
+            workers.shutdown();
         }
     }
 
-    private void handleRequest(DatagramSocket socket, DatagramPacket packet) {
-        String message = new String(packet.getData(), 0, packet.getLength()).trim();
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(MAX_PACKET_SIZE);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer); // com a pool cheia o buffer fica para o GC
+    }
+
+    private void handleRequest(DatagramChannel channel, ByteBuffer buffer, InetSocketAddress from) {
+        String message = new String(buffer.array(), 0, buffer.limit(), StandardCharsets.UTF_8).trim();
         String[] parts = message.split(" ");
         String command = parts[0];
 
-        System.out.println("Recebido: " + message + " de " + packet.getAddress() + ":" + packet.getPort());
+        metrics.counter("diretoria.packets").increment();
+        // com centenas de packets por segundo a consola era o gargalo, so em modo verbose
+        if (Constants.DIRECTORY_VERBOSE)
+            System.out.println("Recebido: " + message + " de " + from.getAddress() + ":" + from.getPort());
 
         switch (command) { // switch com base no tipo de mensagem
             case "HEARTBEAT":
-                handleHeartbeat(parts, packet.getAddress(), packet.getPort());
+                handleHeartbeat(parts, from.getAddress(), from.getPort());
                 break;
             case "GET_SERVER": // comando para obter o servidor mais antigo
-                handleGetServer(socket, packet);
+                handleGetServer(channel, from);
+                break;
+            case "GET_READ_SERVER": // servidor para as leituras de um cliente (primario ou backup)
+                handleGetReadServer(channel, from);
+                break;
+            case "GET_STATS": // tempos de detecao e de failover medidos
+                send(channel, from, metrics.report());
+                break;
+            case "SUBSCRIBE": // subscreve ou renova, a resposta e o primario atual
+                handleSubscribe(channel, from);
+                break;
+            case "UNSUBSCRIBE":
+                subscribers.remove(from);
                 break;
             default:
                 System.out.println("Comando desconhecido: " + command);
@@ -67,80 +159,250 @@ public class DirectoryService {
     private void handleHeartbeat(String[] parts, InetAddress address, int port) {
         if (parts.length < 4)
             return; // Mensagem diferente do esperado:
-                    // HEARTBEAT <tcp_port> <db_version> <sync_port>
+                    // HEARTBEAT <tcp_port> <db_version> <sync_port> [P|B [<clientes> <pedidos/s> <em curso>]]
 
         try {
             int tcpPort = Integer.parseInt(parts[1]);
             int dbVersion = Integer.parseInt(parts[2]);
             int syncPort = Integer.parseInt(parts[3]);
+            boolean primary = parts.length > 4 && "P".equals(parts[4]);
+            boolean load = parts.length > 7; // servidores antigos nao enviam a carga
+            int clients = load ? Integer.parseInt(parts[5]) : 0;
+            int requestRate = load ? Integer.parseInt(parts[6]) : 0;
+            int queued = load ? Integer.parseInt(parts[7]) : 0;
+            long now = System.currentTimeMillis();
 
             // chave do servidor que enviou o heartbeat
             String key = address.getHostAddress() + ":" + tcpPort;
-            servers.compute(key, (k, v) -> {
+            boolean[] joined = { false };
+            ServerInfo info = servers.compute(key, (k, v) -> {
                 if (v == null) { // caso o servidor nao esteja registado
                     System.out.println("Novo servidor registado: " + key);
-                    return new ServerInfo(address, tcpPort, syncPort, dbVersion, System.currentTimeMillis(),
-                            System.currentTimeMillis());
+                    v = new ServerInfo(address, tcpPort, syncPort, dbVersion, now, now);
+                    addMember(v);
+                    joined[0] = true;
                 } else {
-                    // caso o servidor esteja registado, atualiza os dados
-                    v.lastHeartbeat = System.currentTimeMillis();
+                    // caso o servidor esteja registado, atualiza os dados e adia o prazo
+                    v.heartbeat(now);
                     v.dbVersion = dbVersion;
-                    return v;
                 }
+                v.primary = primary;
+                v.updateLoad(clients, requestRate, queued);
+                return v;
             });
+            wheel.schedule(info, info.deadline);
+            if (joined[0]) {
+                push("JOINED " + address.getHostAddress() + " " + tcpPort);
+                if (primaryKey == null)
+                    getPrimary(); // primeiro servidor: elege ja e avisa os subscritores
+            }
+            if (primary && failoverStart != 0 && key.equals(primaryKey)) {
+                long millis = now - failoverStart;
+                failoverStart = 0;
+                lastFailover.set(millis);
+                metrics.counter("diretoria.failovers").increment();
+                metrics.counter("diretoria.failover_total_ms").add(millis);
+                System.out.println("Failover concluido: " + key + " e o servidor principal (versao "
+                        + info.dbVersion + ") " + millis + " ms depois do ultimo heartbeat do anterior");
+            }
         } catch (NumberFormatException e) {
             System.err.println("Heartbeat invalido");
         }
     }
 
-    private void handleGetServer(DatagramSocket socket, DatagramPacket packet) {
-        ServerInfo bestServer = getOldestServer();
-        String response;
+    private void handleGetServer(DatagramChannel channel, SocketAddress from) {
+        reply(channel, from, getPrimary());
+    }
+
+    private void handleGetReadServer(DatagramChannel channel, SocketAddress from) {
+        reply(channel, from, getReadServer());
+    }
 
-        // se existir um servidor registado devolve-o ou então devolve NO_SERVERS
-        if (bestServer != null) {
-            response = "SERVER " + bestServer.address.getHostAddress() + " " + bestServer.tcpPort + " "
-                    + bestServer.syncPort;
-        } else {
-            response = "NO_SERVERS";
-        }
+    private void handleSubscribe(DatagramChannel channel, SocketAddress from) {
+        if (subscribers.put(from, System.currentTimeMillis() + Constants.DIRECTORY_LEASE) == null)
+            metrics.counter("diretoria.subscricoes").increment();
+        reply(channel, from, getPrimary());
+    }
+
+    private void reply(DatagramChannel channel, SocketAddress from, ServerInfo bestServer) {
+        send(channel, from, describe(bestServer));
+    }
 
-        // prepara e envia a resposta
-        byte[] data = response.getBytes();
-        DatagramPacket responsePacket = new DatagramPacket(
-                data, data.length, packet.getAddress(), packet.getPort());
+    // se existir um servidor registado devolve-o ou então devolve NO_SERVERS
+    // SERVER <ip> <tcp_port> <sync_port> <db_version>
+    private static String describe(ServerInfo server) {
+        if (server == null)
+            return "NO_SERVERS";
+        return "SERVER " + server.address.getHostAddress() + " " + server.tcpPort + " " + server.syncPort + " "
+                + server.dbVersion;
+    }
+
+    // envia a todos os subscritores com lease valida, os expirados saem aqui
+    // (SERVER/NO_SERVERS quando o primario muda, JOINED/LEFT <ip> <tcp_port> quando os servidores mudam)
+    // uma notificacao perdida e corrigida na renovacao seguinte, que responde com o primario atual
+    private void push(String message) {
+        if (subscribers.isEmpty())
+            return;
+        pushExecutor.execute(() -> {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<SocketAddress, Long> entry : subscribers.entrySet()) {
+                if (entry.getValue() < now) {
+                    subscribers.remove(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                send(channel, entry.getKey(), message);
+                metrics.counter("diretoria.notificacoes").increment();
+            }
+        });
+    }
 
+    private void send(DatagramChannel channel, SocketAddress to, String response) {
+        // prepara e envia a resposta (send no canal e seguro entre workers)
         try {
-            socket.send(responsePacket);
+            channel.send(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)), to);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private ServerInfo getOldestServer() {
-        // devolve o servidor mais antigo ou null se nao houver
+    // servidor principal atual; sem principal (arranque ou falha) elege um
+    private ServerInfo getPrimary() {
+        String key = primaryKey;
+        ServerInfo primary = key != null ? servers.get(key) : null;
+        if (primary != null)
+            return primary;
+        electionLock.lock();
+        try {
+            primary = primaryKey != null ? servers.get(primaryKey) : null;
+            if (primary == null) {
+                primary = elect();
+                primaryKey = primary != null ? primary.key() : null;
+                if (primary != null) {
+                    System.out.println("Servidor principal: " + primaryKey + " (versao " + primary.dbVersion + ")");
+                    push(describe(primary)); // o eleito promove-se e os clientes mudam sem esperar
+                }
+            }
+            return primary;
+        } finally {
+            electionLock.unlock();
+        }
+    }
+
+    // o servidor vivo com a versao mais alta perde menos escritas; em empate o mais antigo
+    // um servidor que ja se anuncia como principal ganha (ex: a diretoria reiniciou)
+    private ServerInfo elect() {
         return servers.values().stream()
-                .min((s1, s2) -> Long.compare(s1.registrationTime, s2.registrationTime))
+                .min(Comparator.comparing((ServerInfo s) -> !s.primary)
+                        .thenComparingInt(s -> -s.dbVersion)
+                        .thenComparingLong(s -> s.registrationTime))
                 .orElse(null);
     }
 
+    // todos os servidores tem a base de dados completa, as leituras vao para o menos carregado
+    // de dois servidores ao acaso, segundo o ultimo heartbeat (o primario tambem entra);
+    // com a carga atrasada ate um segundo, escolher sempre o minimo mandava uma rajada de
+    // clientes toda para o mesmo, e cada cliente enviado conta logo na carga ate ao heartbeat seguinte
+    private ServerInfo getReadServer() {
+        ServerInfo[] all = members;
+        if (all.length == 0)
+            return null;
+        ServerInfo best = all[0];
+        if (all.length > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(all.length);
+            int second = (first + 1 + random.nextInt(all.length - 1)) % all.length;
+            ServerInfo a = all[first];
+            ServerInfo b = all[second];
+            best = a.loadScore() <= b.loadScore() ? a : b;
+        }
+        best.assigned.incrementAndGet();
+        return best;
+    }
+
+    // o primario falhou: elege ja o substituto, que se promove na proxima consulta
+    private void failover(ServerInfo failed) {
+        electionLock.lock();
+        try {
+            primaryKey = null;
+        } finally {
+            electionLock.unlock();
+        }
+        ServerInfo next = getPrimary();
+        if (next != null)
+            failoverStart = failed.lastHeartbeat;
+        else
+            push(describe(null));
+    }
+
+    // entradas e saidas sao raras comparadas com os pedidos de leitura
+    private void addMember(ServerInfo info) {
+        membersLock.lock();
+        try {
+            ServerInfo[] next = Arrays.copyOf(members, members.length + 1);
+            next[next.length - 1] = info;
+            members = next;
+        } finally {
+            membersLock.unlock();
+        }
+    }
+
+    private void removeMember(ServerInfo info) {
+        membersLock.lock();
+        try {
+            ServerInfo[] current = members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == info) {
+                    ServerInfo[] next = Arrays.copyOf(current, current.length - 1);
+                    if (i < next.length)
+                        next[i] = current[current.length - 1]; // a ordem nao importa
+                    members = next;
+                    return;
+                }
+            }
+        } finally {
+            membersLock.unlock();
+        }
+    }
+
     private void monitorHeartbeats() {
+        long nextSweep = 0;
         while (running) {
             long now = System.currentTimeMillis();
-            Iterator<Map.Entry<String, ServerInfo>> it = servers.entrySet().iterator(); // itera sobre os servidores
-                                                                                        // registados
-
-            while (it.hasNext()) { // enquanto houver mais servidores registados
-                Map.Entry<String, ServerInfo> entry = it.next();
-                // se o servidor nao tiver enviado um heartbeat no espaco de tempo pre definido
-                if (now - entry.getValue().lastHeartbeat > Constants.DIRECTORY_SERVICE_TIMEOUT) {
-                    it.remove();
-                    System.out.println("Servidor removido: " + entry.getKey());
+            if (now >= nextSweep) { // leases expiradas de quem saiu sem UNSUBSCRIBE
+                subscribers.values().removeIf(expiry -> expiry < now);
+                nextSweep = now + Constants.DIRECTORY_LEASE;
+            }
+            // so os servidores com o prazo neste tick, os outros nao sao vistos
+            for (ServerInfo info : wheel.advance(now)) {
+                String key = info.key();
+                // suspeita pelo historico dos heartbeats (prazo do detetor phi) ou timeout fixo;
+                // a decisao fica dentro do compute para nao remover um heartbeat acabado de chegar
+                boolean[] removed = { false };
+                servers.computeIfPresent(key, (k, v) -> {
+                    if (v != info || now < v.deadline)
+                        return v;
+                    removed[0] = true;
+                    removeMember(v);
+                    return null;
+                });
+                if (!removed[0]) {
+                    if (servers.get(key) == info)
+                        wheel.schedule(info, info.deadline); // heartbeat entretanto, novo prazo
+                    continue;
                 }
+                long silent = now - info.lastHeartbeat;
+                lastDetection.set(silent);
+                metrics.counter("diretoria.falhas_detetadas").increment();
+                metrics.counter("diretoria.detecao_total_ms").add(silent);
+                System.out.printf("Servidor removido: %s (phi %.1f, %d ms sem heartbeat)%n",
+                        key, info.detector.phi(now), silent);
+                push("LEFT " + info.address.getHostAddress() + " " + info.tcpPort);
+                if (key.equals(primaryKey))
+                    failover(info);
             }
 
             try {
-                Thread.sleep(1000);
+                Thread.sleep(Constants.DIRECTORY_MONITOR_INTERVAL);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
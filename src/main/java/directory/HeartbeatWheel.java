@@ -0,0 +1,69 @@
+package directory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Roda temporal (hashed timing wheel) com o prazo de cada servidor
+    Cada slot tem os servidores cujo prazo cai nesse tick, em cada verificacao a diretoria so
+    ve os slots dos ticks que passaram em vez de percorrer todos os servidores.
+    O agendamento e preguicoso: um heartbeat so adia o prazo (nao mexe na roda se o servidor
+    ja estiver agendado mais cedo), quando o tick chega quem chamou verifica o prazo atual
+    e volta a agendar os servidores que continuam vivos. Entradas antigas sao ignoradas.
+    A roda cobre uma volta (o timeout fixo cabe nela), prazos mais longos saem antes.
+ */
+class HeartbeatWheel {
+    private final long tickMillis;
+    private final List<List<ServerInfo>> slots;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentTick; // proximo tick por processar
+
+    HeartbeatWheel(long tickMillis, int size, long now) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            slots.add(new ArrayList<>());
+        this.currentTick = now / tickMillis;
+    }
+
+    // (re)arma o servidor para o prazo dado; O(1)
+    void schedule(ServerInfo info, long deadline) {
+        lock.lock();
+        try {
+            long tick = Math.max(currentTick, (deadline + tickMillis - 1) / tickMillis);
+            // no maximo uma volta, um prazo mais longe sai antes e volta a ser agendado
+            tick = Math.min(tick, currentTick + slots.size() - 1);
+            if (info.wheelTick >= 0 && info.wheelTick <= tick)
+                return; // ja agendado mais cedo, nessa altura e reagendado
+            info.wheelTick = tick;
+            slots.get((int) (tick % slots.size())).add(info);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // servidores agendados ate now, deixam de estar na roda ate serem reagendados
+    List<ServerInfo> advance(long now) {
+        List<ServerInfo> due = new ArrayList<>();
+        lock.lock();
+        try {
+            long lastTick = now / tickMillis;
+            for (; currentTick <= lastTick; currentTick++) {
+                List<ServerInfo> slot = slots.get((int) (currentTick % slots.size()));
+                if (slot.isEmpty())
+                    continue;
+                for (ServerInfo info : slot) {
+                    if (info.wheelTick == currentTick) { // as outras entradas ja foram reagendadas
+                        info.wheelTick = -1;
+                        due.add(info);
+                    }
+                }
+                slot.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return due;
+    }
+}
@@ -0,0 +1,119 @@
+package directory;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Detetor de falhas phi-accrual (Hayashibara et al.) para um servidor
+    Guarda os intervalos entre os ultimos heartbeats e calcula phi = -log10(P(atraso >= t)),
+    com t o tempo desde o ultimo heartbeat e uma distribuicao normal dos intervalos.
+    Um servidor com heartbeats regulares e detetado pouco depois do intervalo normal,
+    um com heartbeats irregulares tem mais margem. phi 8 ~ 1 falso positivo em 10^8.
+    Como phi so cresce com t entre heartbeats, deadline() diz logo quando o limiar vai ser
+    passado e a diretoria nao precisa de calcular phi para todos os servidores a cada verificacao.
+ */
+class PhiAccrualDetector {
+    private final long[] intervals; // janela circular dos ultimos intervalos (ms)
+    private final long minStdDev; // evita phi enorme com heartbeats muito regulares
+    private final double thresholdStdDevs; // desvios padrao acima da media em que phi passa o limiar
+    private final ReentrantLock lock = new ReentrantLock();
+    private int count = 0;
+    private int next = 0;
+    private long sum = 0;
+    private long sumSquares = 0;
+    private long last = -1; // ultimo heartbeat (ms), -1 antes do primeiro
+
+    PhiAccrualDetector(int window, long minStdDev, double threshold) {
+        this.intervals = new long[Math.max(2, window)];
+        this.minStdDev = Math.max(1, minStdDev);
+        this.thresholdStdDevs = stdDevsFor(threshold);
+    }
+
+    void heartbeat(long now) {
+        lock.lock();
+        try {
+            if (last >= 0) {
+                long interval = now - last;
+                if (count == intervals.length) { // sai o mais antigo
+                    long old = intervals[next];
+                    sum -= old;
+                    sumSquares -= old * old;
+                } else {
+                    count++;
+                }
+                intervals[next] = interval;
+                next = (next + 1) % intervals.length;
+                sum += interval;
+                sumSquares += interval * interval;
+            }
+            last = now;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // suspeita de falha; 0 enquanto nao houver pelo menos dois intervalos (usa-se o timeout fixo)
+    double phi(long now) {
+        lock.lock();
+        try {
+            if (count < 2)
+                return 0;
+            double mean = (double) sum / count;
+            double variance = (double) sumSquares / count - mean * mean;
+            double stdDev = Math.max(minStdDev, Math.sqrt(Math.max(0, variance)));
+            return phi(now - last, mean, stdDev);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // instante (ms) em que phi passa o limiar sem novo heartbeat, no maximo last + hardTimeout
+    // (sem pelo menos dois intervalos so conta o hardTimeout)
+    long deadline(long hardTimeout) {
+        lock.lock();
+        try {
+            long limit = last + hardTimeout;
+            if (count < 2)
+                return limit;
+            double mean = (double) sum / count;
+            double variance = (double) sumSquares / count - mean * mean;
+            double stdDev = Math.max(minStdDev, Math.sqrt(Math.max(0, variance)));
+            return Math.min(limit, last + (long) Math.ceil(mean + thresholdStdDevs * stdDev));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long lastHeartbeat() {
+        lock.lock();
+        try {
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // inverso de phi(): y tal que phi(mean + y * stdDev) = threshold, pelo metodo de Newton
+    // em y * (1.5976 + 0.070566 * y^2) = ln(10^threshold - 1)
+    static double stdDevsFor(double threshold) {
+        double target = Math.log(Math.pow(10, threshold) - 1);
+        if (target <= 0)
+            return 0; // limiar abaixo de phi na media
+        double y = target / 1.5976;
+        for (int i = 0; i < 50; i++) {
+            double f = y * (1.5976 + 0.070566 * y * y) - target;
+            y -= f / (1.5976 + 3 * 0.070566 * y * y);
+            if (Math.abs(f) < 1e-9)
+                break;
+        }
+        return y;
+    }
+
+    // aproximacao logistica da cauda da normal (a mesma do detetor do Akka)
+    static double phi(long elapsed, double mean, double stdDev) {
+        double y = (elapsed - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean)
+            return -Math.log10(e / (1.0 + e));
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
@@ -1,14 +1,35 @@
 package directory;
 
+import common.Constants;
+
 import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class ServerInfo {
+    // pesos da carga: um pedido a espera ou em curso pesa como dois clientes parados
+    // e RATE_PER_CLIENT pedidos/s contam como um cliente
+    private static final double QUEUE_WEIGHT = 2;
+    private static final double RATE_PER_CLIENT = 50;
 
-public class ServerInfo {
     InetAddress address;
     int tcpPort;
     int syncPort;
     int dbVersion;
     long lastHeartbeat;
     long registrationTime;
+    boolean primary; // o proprio servidor diz que ja e o principal (ultimo heartbeat)
+    // carga do ultimo heartbeat: clientes ligados, pedidos por segundo e pedidos em curso
+    int clients;
+    int requestRate;
+    int queuedRequests;
+    // clientes enviados para este servidor desde o ultimo heartbeat (ainda nao contados nele)
+    final AtomicInteger assigned = new AtomicInteger();
+    // historico dos heartbeats para detetar a falha (phi-accrual)
+    final PhiAccrualDetector detector = new PhiAccrualDetector(Constants.DIRECTORY_PHI_WINDOW,
+            Constants.DIRECTORY_PHI_MIN_STDDEV, Constants.DIRECTORY_PHI_THRESHOLD);
+    // quando o servidor passa a ser considerado em falha sem novo heartbeat (detetor ou timeout fixo)
+    volatile long deadline;
+    long wheelTick = -1; // tick em que esta agendado na HeartbeatWheel, -1 se nao estiver (lock da roda)
 
     public ServerInfo(InetAddress address, int tcpPort, int syncPort, int dbVersion, long lastHeartbeat,
             long registrationTime) {
@@ -18,5 +39,28 @@ public class ServerInfo {
         this.dbVersion = dbVersion;
         this.lastHeartbeat = lastHeartbeat;
         this.registrationTime = registrationTime;
+        heartbeat(lastHeartbeat);
+    }
+
+    void heartbeat(long now) {
+        lastHeartbeat = now;
+        detector.heartbeat(now);
+        deadline = detector.deadline(Constants.DIRECTORY_SERVICE_TIMEOUT);
+    }
+
+    void updateLoad(int clients, int requestRate, int queuedRequests) {
+        this.clients = clients;
+        this.requestRate = requestRate;
+        this.queuedRequests = queuedRequests;
+        assigned.set(0);
+    }
+
+    // menor e melhor, so serve para comparar servidores
+    double loadScore() {
+        return clients + assigned.get() + queuedRequests * QUEUE_WEIGHT + requestRate / RATE_PER_CLIENT;
+    }
+
+    String key() {
+        return address.getHostAddress() + ":" + tcpPort;
     }
 }
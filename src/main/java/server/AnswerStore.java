@@ -0,0 +1,135 @@
+package server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+
+/* Acesso a tabela answers */
+public final class AnswerStore {
+    static final String EXISTS = "SELECT 1 FROM answers WHERE question_id = ? AND student_email = ?";
+    static final String OF_QUESTION = "SELECT student_email, answer_index FROM answers WHERE question_id = ?";
+    static final String COUNT = "SELECT COUNT(*) FROM answers WHERE question_id = ?";
+    static final String FOR_QUESTION = "SELECT a.answer_index, a.student_email, u.name, u.student_id " +
+            "FROM answers a " +
+            "JOIN users u ON a.student_email = u.email " +
+            "WHERE a.question_id = ?";
+    static final String HISTORY = "SELECT q.prompt, q.correct_option, a.answer_index, a.timestamp " +
+            "FROM answers a " +
+            "JOIN questions q ON a.question_id = q.id " +
+            "WHERE a.student_email = ?";
+    static final String TABLE = "answers";
+    private static final String[] INSERT_COLUMNS = { "question_id", "student_email", "answer_index", "timestamp" };
+    private static final String[] STUDENT = { "student_email" };
+
+    private AnswerStore() {
+    }
+
+    // resposta de um aluno com os dados do utilizador
+    public static class StudentAnswer {
+        public final String studentId;
+        public final String name;
+        public final String email;
+        public final int answerIndex;
+
+        StudentAnswer(ResultSet rs) throws SQLException {
+            this.studentId = rs.getString("student_id");
+            this.name = rs.getString("name");
+            this.email = rs.getString("student_email");
+            this.answerIndex = rs.getInt("answer_index");
+        }
+    }
+
+    // linha do historico de um aluno
+    public static class HistoryEntry {
+        public final String prompt;
+        public final int correctOption;
+        public final int answerIndex;
+        public final long timestamp; // milissegundos
+
+        HistoryEntry(ResultSet rs) throws SQLException {
+            this.prompt = rs.getString("prompt");
+            this.correctOption = rs.getInt("correct_option");
+            this.answerIndex = rs.getInt("answer_index");
+            this.timestamp = rs.getLong("timestamp");
+        }
+    }
+
+    public static boolean exists(DatabaseManager.Lease db, int questionId, String studentEmail) throws SQLException {
+        PreparedStatement ps = db.prepare(EXISTS);
+        ps.setInt(1, questionId);
+        ps.setString(2, studentEmail);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    public static int count(DatabaseManager.Lease db, int questionId) throws SQLException {
+        PreparedStatement ps = db.prepare(COUNT);
+        ps.setInt(1, questionId);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    public static List<StudentAnswer> forQuestion(DatabaseManager.Lease db, int questionId) throws SQLException {
+        PreparedStatement ps = db.prepare(FOR_QUESTION);
+        ps.setInt(1, questionId);
+        List<StudentAnswer> answers = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                answers.add(new StudentAnswer(rs));
+            }
+        }
+        return answers;
+    }
+
+    // percorre (email, opcao) das respostas de uma pergunta sem criar objetos por linha
+    public static void answersOf(DatabaseManager.Lease db, int questionId, ObjIntConsumer<String> consumer)
+            throws SQLException {
+        PreparedStatement ps = db.prepare(OF_QUESTION);
+        ps.setInt(1, questionId);
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                consumer.accept(rs.getString(1), rs.getInt(2));
+            }
+        }
+    }
+
+    // filtro CORRECT, INCORRECT, LAST_24H ou qualquer outro valor para tudo; now em milissegundos
+    public static List<HistoryEntry> history(DatabaseManager.Lease db, String email, String filter, long now)
+            throws SQLException {
+        PreparedStatement ps = db.prepare(historySql(filter)); // so ha quatro variantes, todas ficam em cache
+        ps.setString(1, email);
+        if ("LAST_24H".equalsIgnoreCase(filter))
+            ps.setLong(2, now - (24 * 60 * 60 * 1000));
+        List<HistoryEntry> history = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                history.add(new HistoryEntry(rs));
+            }
+        }
+        return history;
+    }
+
+    // SQL do historico para o filtro (LAST_24H tem o segundo parametro, o inicio do intervalo)
+    static String historySql(String filter) {
+        if ("CORRECT".equalsIgnoreCase(filter))
+            return HISTORY + " AND a.answer_index = q.correct_option";
+        if ("INCORRECT".equalsIgnoreCase(filter))
+            return HISTORY + " AND a.answer_index != q.correct_option";
+        if ("LAST_24H".equalsIgnoreCase(filter))
+            return HISTORY + " AND a.timestamp >= ?";
+        return HISTORY;
+    }
+
+    public static Update insert(int questionId, String studentEmail, int answerIndex, long timestamp) {
+        return Update.insert(TABLE, INSERT_COLUMNS, questionId, studentEmail, answerIndex, timestamp);
+    }
+
+    public static Update changeStudent(String oldEmail, String newEmail) {
+        return Update.update(TABLE, STUDENT, STUDENT, newEmail, oldEmail);
+    }
+}
@@ -1,13 +1,24 @@
 package server;
 
+import common.Constants;
+import common.FrameCodec;
+import common.JavaMessageCodec;
 import common.Message;
+import common.MessageCodec;
+import common.ThreadSupport;
 import java.io.*;
 import java.net.Socket;
-import java.sql.*;
+import java.sql.SQLException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
@@ -18,10 +29,23 @@ public class ClientHandler implements Runnable {
     // runnable para conseguir gerir multiplos clientes ao mesmo tempo
     // atraves de varias threads, funcao run() corre para cada cliente
     private Socket socket;
+    private NioTransport.Connection connection; // usado apenas no modo NIO
     private DatabaseManager dbManager;
     private Server server;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private MessageCodec codec; // escolhido na negociacao inicial
+    // limita os pedidos em curso desta ligacao, a leitura espera quando chega ao limite
+    private final Semaphore inFlight = new Semaphore(Constants.MAX_PIPELINED_REQUESTS);
+    // fila de saida limitada, drenada pelo loop de I/O (NIO), pelo writer (blocking com virtual threads)
+    // ou por quem responde (blocking com platform threads, sem uma segunda thread por ligacao),
+    // as notificacoes neste ultimo caso sao escritas por uma tarefa desta ligacao so enquanto houver fila
+    private final BlockingQueue<Message> outbound = new ArrayBlockingQueue<>(Constants.OUTBOUND_QUEUE_CAPACITY);
+    private final ReentrantLock drainLock = new ReentrantLock(); // so uma thread escreve na socket de cada vez
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false); // notificacoes ja agendadas
+    private volatile long writingSince = 0; // nanoTime do inicio da mensagem a ser escrita, 0 sem escrita
+    private volatile boolean evicted = false;
+    private Future<?> writer;
 
     // recebe dados da mainclass server
     public ClientHandler(Socket socket, DatabaseManager dbManager, Server server) {
@@ -30,20 +54,52 @@ public class ClientHandler implements Runnable {
         this.server = server;
     }
 
+    // modo NIO: a leitura e escrita sao feitas pelo NioTransport
+    ClientHandler(NioTransport.Connection connection, DatabaseManager dbManager, Server server) {
+        this.connection = connection;
+        this.dbManager = dbManager;
+        this.server = server;
+    }
+
     @Override
     public void run() { // corre para cada cliente
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // negociacao do codec, clientes sem HELLO usam serializacao Java
+            byte[] first = FrameCodec.readRawFrame(in);
+            Message pending = null;
+            if (FrameCodec.isHello(first, 0, first.length)) {
+                codec = FrameCodec.negotiate(first, 0, first.length);
+                FrameCodec.writeRawFrame(out, FrameCodec.helloReply(codec));
+            } else {
+                codec = JavaMessageCodec.INSTANCE;
+                pending = codec.decode(first, 0, first.length);
+            }
+            if (ThreadSupport.virtualThreads())
+                writer = server.startClientTask(this::writeLoop);
 
             // Avisar o servidor que este cliente entrou
             server.addClient(this); // passa ao servidor a sua propria instancia
 
-            while (!socket.isClosed()) { // enquanto a socket estiver aberta
-                Message request = (Message) in.readObject(); // le a mensagem do cliente
-                Message response = handleRequest(request); // processa a mensagem
+            if (pending != null)
+                sendMessage(handleRequest(pending));
 
-                sendMessage(response); // envia a resposta
+            while (!socket.isClosed()) { // enquanto a socket estiver aberta
+                Message request = FrameCodec.readFrame(in, codec); // le a mensagem do cliente
+                inFlight.acquire();
+                server.requestQueued();
+                // pedidos independentes da mesma ligacao sao processados em paralelo,
+                // a resposta leva o requestId do pedido e pode sair fora de ordem
+                server.executeRequest(() -> {
+                    try {
+                        sendMessage(handleRequest(request));
+                    } finally {
+                        server.requestDone();
+                        inFlight.release();
+                    }
+                });
             }
         } catch (EOFException e) {
             // cliente desconectou
@@ -52,6 +108,8 @@ public class ClientHandler implements Runnable {
         } finally {
             // avisa o servidor que este cliente saiu
             server.removeClient(this);
+            if (writer != null)
+                writer.cancel(true); // para o writer desta ligacao
             try {
                 socket.close(); // fecha o socket
             } catch (IOException e) {
@@ -60,34 +118,66 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private Message handleRequest(Message request) {
-        try { // redireciona requests para o seu respetivo handler
-              // com base no tipo da mensagem
+    Message handleRequest(Message request) {
+        Message response = processRequest(request);
+        response.setRequestId(request.getRequestId()); // para o cliente associar a resposta ao pedido
+        // resposta a uma escrita: versao para as leituras seguintes do cliente verem a escrita
+        // (lida depois do commit, pode incluir escritas concorrentes mas nunca e menor)
+        if (server.isPrimary() && !Message.READ_ONLY.contains(request.getType()))
+            response.setDbVersion(dbManager.getDbVersion());
+        return response;
+    }
+
+    private Message processRequest(Message request) {
+        // um backup serve as leituras e o login, as escritas sao recusadas com o endereco do primario
+        if (!server.isPrimary() && request.getType() != Message.Type.LOGIN_REQUEST
+                && !Message.READ_ONLY.contains(request.getType())) {
+            server.getMetrics().counter("pedidos.escritas_recusadas").increment();
+            return new Message(Message.Type.NOT_PRIMARY, server.getPrimaryClient());
+        }
+        if (Message.READ_ONLY.contains(request.getType()))
+            server.getMetrics().counter("pedidos.leituras").increment();
+        // backup atrasado em relacao a ultima escrita do cliente: espera um pouco ou manda-o ao primario
+        if (!server.isPrimary() && request.getDbVersion() > dbManager.getDbVersion()
+                && !server.awaitVersion(request.getDbVersion()))
+            return new Message(Message.Type.NOT_PRIMARY, server.getPrimaryClient());
+        // criar uma pergunta nao le nada, nao precisa de ligacao de leitura
+        if (request.getType() == Message.Type.CREATE_QUESTION) {
+            try {
+                return handleCreateQuestion((String[]) request.getContent());
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new Message(Message.Type.LOGIN_RESPONSE, null);
+            }
+        }
+        // cada pedido empresta uma ligacao de leitura da pool e devolve-a no fim; as escritas
+        // devolvem-na depois das verificacoes, antes de esperar pelo group commit
+        try (DatabaseManager.Lease db = dbManager.acquireReader()) {
+            // redireciona requests para o seu respetivo handler
+            // com base no tipo da mensagem
             switch (request.getType()) {
                 case LOGIN_REQUEST:
-                    return handleLogin((String[]) request.getContent());
+                    return handleLogin(db, (String[]) request.getContent());
                 case REGISTER_REQUEST:
-                    return handleRegister((String[]) request.getContent());
-                case CREATE_QUESTION:
-                    return handleCreateQuestion((String[]) request.getContent());
+                    return handleRegister(db, (String[]) request.getContent());
                 case LIST_QUESTIONS:
-                    return handleListQuestions((String) request.getContent());
+                    return handleListQuestions(db, (String) request.getContent());
                 case GET_QUESTION:
-                    return handleGetQuestion((String) request.getContent());
+                    return handleGetQuestion(db, (String) request.getContent());
                 case SUBMIT_ANSWER:
-                    return handleSubmitAnswer((String[]) request.getContent());
+                    return handleSubmitAnswer(db, (String[]) request.getContent());
                 case EXPORT_CSV:
-                    return handleExportCsv((String) request.getContent());
+                    return handleExportCsv(db, (String) request.getContent());
                 case EDIT_QUESTION:
-                    return handleEditQuestion((String[]) request.getContent());
+                    return handleEditQuestion(db, (String[]) request.getContent());
                 case DELETE_QUESTION:
-                    return handleDeleteQuestion((String) request.getContent());
+                    return handleDeleteQuestion(db, (String) request.getContent());
                 case GET_QUESTION_ANSWERS:
-                    return handleGetQuestionAnswers((String) request.getContent());
+                    return handleGetQuestionAnswers(db, (String) request.getContent());
                 case GET_STUDENT_HISTORY:
-                    return handleGetStudentHistory((String[]) request.getContent());
+                    return handleGetStudentHistory(db, (String[]) request.getContent());
                 case EDIT_PROFILE:
-                    return handleEditProfile((String[]) request.getContent());
+                    return handleEditProfile(db, (String[]) request.getContent());
                 default:
                     return new Message(Message.Type.LOGIN_RESPONSE, null);
             }
@@ -97,39 +187,27 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private Message handleLogin(String[] credentials) throws SQLException {
+    private Message handleLogin(DatabaseManager.Lease db, String[] credentials) throws SQLException {
         String email = credentials[0];
         String password = credentials[1];
 
-        String sql = "SELECT * FROM users WHERE email = ? AND password = ?";
-        Connection conn = dbManager.getConnection();
-        // cria um prepared statement para a query com a string sql
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            // define os valores dos parametros, identificados com ?
-            pstmt.setString(1, email);
-            pstmt.setString(2, password);
-            // executa a query
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) { // next para verificar se existe resultado
-                String role = rs.getString("role");
-                System.out.println("Utilizador " + email + " logged in como " + role);
-                return new Message(Message.Type.LOGIN_RESPONSE, role);
-                // devolve a role do utilizador
-            } else {
-                System.out.println("Login invalido com: " + email);
-            }
+        String role = UserStore.findRole(db, email, password);
+        if (role != null) {
+            System.out.println("Utilizador " + email + " logged in como " + role);
+            return new Message(Message.Type.LOGIN_RESPONSE, role);
+            // devolve a role do utilizador
         }
+        System.out.println("Login invalido com: " + email);
         // se nao existir resultado devolve null, com mesagem do mesmo tipo
         return new Message(Message.Type.LOGIN_RESPONSE, null);
     }
 
-    private Message handleRegister(String[] data) throws SQLException {
+    private Message handleRegister(DatabaseManager.Lease db, String[] data) throws SQLException {
         // data: [nome, email, password, role, extra]
-        String name = normSql(data[0]);
-        String email = normSql(data[1]);
-        String password = normSql(data[2]);
-        String role = normSql(data[3]);
+        String name = data[0];
+        String email = data[1];
+        String password = data[2];
+        String role = data[3];
 
         // 1. Validar Email
         if (email == null || !email.contains("@")) {
@@ -137,17 +215,11 @@ public class ClientHandler implements Runnable {
         }
 
         // Verificar se já existe ---
-        Connection conn = dbManager.getConnection();
-        String checkSql = "SELECT email FROM users WHERE email = ?";
-        try (PreparedStatement check = conn.prepareStatement(checkSql)) {
-            check.setString(1, email);
-            if (check.executeQuery().next()) {
-                System.out.println("Tentativa de registo duplicado para: " + email);
-                return new Message(Message.Type.REGISTER_RESPONSE, false); // Retorna falha se já existir
-            }
+        if (UserStore.exists(db, email)) {
+            System.out.println("Tentativa de registo duplicado para: " + email);
+            return new Message(Message.Type.REGISTER_RESPONSE, false); // Retorna falha se já existir
         }
 
-
         String studentId = null;
         String teacherCode = null;
 
@@ -156,7 +228,7 @@ public class ClientHandler implements Runnable {
             if (rawId == null || !rawId.matches("\\d+")) {
                 return new Message(Message.Type.REGISTER_RESPONSE, false);
             }
-            studentId = normSql(rawId);
+            studentId = rawId;
         } else {
             // Validação de Professor
             String inputCode = data[4].trim();
@@ -169,23 +241,19 @@ public class ClientHandler implements Runnable {
             teacherCode = hashedCode;
         }
 
-        String query = String.format(
-                "INSERT INTO users (name, email, password, role, student_id, teacher_code_hash) VALUES ('%s', '%s', '%s', '%s', '%s', '%s')",
-                name, email, password, role, studentId != null ? studentId : "NULL",
-                teacherCode != null ? teacherCode : "NULL");
-
-        server.executeUpdate(query);
-        return new Message(Message.Type.REGISTER_RESPONSE, true);
+        db.close();
+        boolean ok = server.executeUpdate(UserStore.insert(name, email, password, role, studentId, teacherCode));
+        return new Message(Message.Type.REGISTER_RESPONSE, ok);
     }
 
     private Message handleCreateQuestion(String[] data) throws SQLException {
-        String prompt = normSql(data[0]);
-        String options = normSql(data[1]);
-        String correctOption = data[2];
+        String prompt = data[0];
+        String options = data[1];
+        int correctOption = Integer.parseInt(data[2].trim());
         String startTimeStr = data[3];
         String endTimeStr = data[4];
-        String accessCode = normSql(data[5]);
-        String creatorEmail = normSql(data[6]);
+        String accessCode = data[5];
+        String creatorEmail = data[6];
 
         long startTime = parseDateToTimestamp(startTimeStr);
         long endTime = parseDateToTimestamp(endTimeStr);
@@ -195,11 +263,9 @@ public class ClientHandler implements Runnable {
             return new Message(Message.Type.CREATE_QUESTION_RESPONSE, false);
         }
 
-        String query = String.format(
-                "INSERT INTO questions (prompt, options, correct_option, start_time, end_time, access_code, creator_email) VALUES ('%s', '%s', %s, %d, %d, '%s', '%s')",
-                prompt, options, correctOption, startTime, endTime, accessCode, creatorEmail);
-
-        server.executeUpdate(query);
+        if (!server.executeUpdate(QuestionStore.insert(prompt, options, correctOption, startTime, endTime,
+                accessCode, creatorEmail)))
+            return new Message(Message.Type.CREATE_QUESTION_RESPONSE, false); // sem notificacao se falhou
         // envia pedido de notificaçao ao servidor
         String notificationMsg = "ATENCAO: Nova pergunta disponivel -> " + data[0];
         server.broadcast(new Message(Message.Type.NOTIFICATION, notificationMsg), this);
@@ -207,158 +273,89 @@ public class ClientHandler implements Runnable {
         return new Message(Message.Type.CREATE_QUESTION_RESPONSE, true);
     }
 
-    private Message handleListQuestions(String filter) throws SQLException {
+    private Message handleListQuestions(DatabaseManager.Lease db, String filter) throws SQLException {
         // devolve lista de perguntas
-        String sql = "SELECT * FROM questions";
-
         if (filter == null) // se o cliente nao tiver enviado um filtro
             filter = "ALL";
 
         long now = System.currentTimeMillis() / 1000;
 
-        // define a query sql de acordo com o filtro
-        if ("ACTIVE".equalsIgnoreCase(filter)) {
-            sql += " WHERE start_time <= " + now + " AND end_time >= " + now;
-        } else if ("EXPIRED".equalsIgnoreCase(filter)) {
-            sql += " WHERE end_time < " + now;
-        } else if ("FUTURE".equalsIgnoreCase(filter)) {
-            sql += " WHERE start_time > " + now;
-        }
         List<String> questions = new ArrayList<>();
-        Connection conn = dbManager.getConnection();
-        // prepara e envia a query
-        try (PreparedStatement pstmt = conn.prepareStatement(sql);
-                ResultSet rs = pstmt.executeQuery()) {
-            // percorre o resultado da query
-            while (rs.next()) {
-                questions.add(
-                        rs.getString("id") + ": " + rs.getString("prompt") +
-                                " (" + rs.getString("access_code") + ")");
-            }
-        } // devolve as perguntas encontradas
+        // percorre as perguntas do filtro pedido
+        for (QuestionStore.Question q : QuestionStore.list(db, filter, now)) {
+            questions.add(q.id + ": " + q.prompt + " (" + q.accessCode + ")");
+        }
+        // devolve as perguntas encontradas
         return new Message(Message.Type.LIST_QUESTIONS_RESPONSE, questions);
     }
 
-    private Message handleGetQuestion(String accessCode) throws SQLException {
-        // Alterado para buscar tempos também
-        String sql = "SELECT * FROM questions WHERE access_code = ?";
-        Connection conn = dbManager.getConnection();
+    private Message handleGetQuestion(DatabaseManager.Lease db, String accessCode) throws SQLException {
+        QuestionStore.Question q = server.getQuestionCache().findByAccessCode(db, accessCode);
+        if (q == null) // Se não encontrou a pergunta
+            return new Message(Message.Type.GET_QUESTIONS_RESPONSE, "ERRO: Código de pergunta invalido.");
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, accessCode);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                // 1. Verificar tempos
-                long start = rs.getLong("start_time");
-                long end = rs.getLong("end_time");
-                long now = System.currentTimeMillis() / 1000;
-
-                if (now < start) {
-                    return new Message(Message.Type.GET_QUESTIONS_RESPONSE, "ERRO: A pergunta ainda nao comecou.");
-                }
-                if (now > end) {
-                    return new Message(Message.Type.GET_QUESTIONS_RESPONSE, "ERRO: A pergunta ja expirou.");
-                }
-
-                // 2. Se tudo estiver bem, envia os dados
-                String prompt = rs.getString("prompt");
-                String options = rs.getString("options");
-                return new Message(Message.Type.GET_QUESTIONS_RESPONSE, new String[] { prompt, options });
-            }
+        // 1. Verificar tempos
+        long now = System.currentTimeMillis() / 1000;
+        if (now < q.startTime) {
+            return new Message(Message.Type.GET_QUESTIONS_RESPONSE, "ERRO: A pergunta ainda nao comecou.");
         }
-        // Se não encontrou a pergunta
-        return new Message(Message.Type.GET_QUESTIONS_RESPONSE, "ERRO: Código de pergunta invalido.");
+        if (now > q.endTime) {
+            return new Message(Message.Type.GET_QUESTIONS_RESPONSE, "ERRO: A pergunta ja expirou.");
+        }
+
+        // 2. Se tudo estiver bem, envia os dados
+        return new Message(Message.Type.GET_QUESTIONS_RESPONSE, new String[] { q.prompt, q.options });
     }
 
-    private Message handleSubmitAnswer(String[] data) throws SQLException {
+    private Message handleSubmitAnswer(DatabaseManager.Lease db, String[] data) throws SQLException {
         // separa os dados recebidos
         String accessCode = data[0];
-        String answerIndex = data[1];
+        int answerIndex = Integer.parseInt(data[1].trim());
         String studentEmail = data[2];
 
         // Obter ID e Tempos (Inicio e Fim) da pergunta
-        String sqlInfo = "SELECT id, start_time, end_time FROM questions WHERE access_code = ?";
-        int questionId = -1;
-        long startTime = 0;
-        long endTime = 0;
-
-        Connection conn = dbManager.getConnection();
-        try (PreparedStatement pstmt = conn.prepareStatement(sqlInfo)) {
-            pstmt.setString(1, accessCode);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                questionId = rs.getInt("id");
-                startTime = rs.getLong("start_time");
-                endTime = rs.getLong("end_time");
-            }
-        }
-
-        if (questionId == -1) // verifica se o id da pergunta existe
+        QuestionStore.Question q = server.getQuestionCache().findByAccessCode(db, accessCode);
+        if (q == null) // verifica se o id da pergunta existe
             return new Message(Message.Type.SUBMIT_ANSWER_RESPONSE, false);
 
         // VALIDAÇÃO TEMPORAL
         long now = System.currentTimeMillis() / 1000; // Tempo atual em segundos
 
-        if (now < startTime) {
+        if (now < q.startTime) {
             System.out.println("Recusado: A pergunta ainda não começou (" + studentEmail + ")");
             return new Message(Message.Type.SUBMIT_ANSWER_RESPONSE, false);
         }
 
-        if (now > endTime) {
+        if (now > q.endTime) {
             System.out.println("Recusado: A pergunta já expirou (" + studentEmail + ")");
             return new Message(Message.Type.SUBMIT_ANSWER_RESPONSE, false);
         }
 
         // Verifica se o aluno ja respondeu a pergunta
-        String checkSql = "SELECT * FROM answers WHERE question_id = ? AND student_email = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
-            pstmt.setInt(1, questionId);
-            pstmt.setString(2, studentEmail);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                System.out.println("Student " + studentEmail + " already answered question " + questionId);
-                return new Message(Message.Type.SUBMIT_ANSWER_RESPONSE, false);
-            }
+        // pergunta ativa: verificacao em memoria, a resposta fica reservada ate ao commit
+        LiveAnswerMatrix live = server.getLiveAnswers().get(q.id);
+        int student = live != null ? server.getLiveAnswers().studentIndex(studentEmail) : -1;
+        boolean duplicate = live != null ? !live.tryClaim(student) : AnswerStore.exists(db, q.id, studentEmail);
+        if (duplicate) {
+            System.out.println("Student " + studentEmail + " already answered question " + q.id);
+            return new Message(Message.Type.SUBMIT_ANSWER_RESPONSE, false);
         }
 
         // Insere a resposta
-        String query = String.format(
-                "INSERT INTO answers (question_id, student_email, answer_index, timestamp) VALUES (%d, '%s', %s, %d)",
-                questionId, normSql(studentEmail), answerIndex, System.currentTimeMillis());
-
-        server.executeUpdate(query); // executa a query
+        db.close();
+        boolean ok = server.executeUpdate(
+                AnswerStore.insert(q.id, studentEmail, answerIndex, System.currentTimeMillis()));
+        if (!ok && live != null)
+            live.unclaim(student);
 
-        return new Message(Message.Type.SUBMIT_ANSWER_RESPONSE, true);
+        return new Message(Message.Type.SUBMIT_ANSWER_RESPONSE, ok);
     }
 
-    private Message handleExportCsv(String accessCode) throws SQLException {
+    private Message handleExportCsv(DatabaseManager.Lease db, String accessCode) throws SQLException {
         StringBuilder csv = new StringBuilder();
 
-        String sqlQuestion = "SELECT * FROM questions WHERE access_code = ?";
-        int questionId = -1;
-        String prompt = "";
-        String optionsStr = "";
-        int correctOptionIndex = -1;
-        long startTime = 0;
-        long endTime = 0;
-        // prepara um statement para receber os dados
-        Connection conn = dbManager.getConnection();
-        try (PreparedStatement pstmt = conn.prepareStatement(sqlQuestion)) {
-            pstmt.setString(1, accessCode);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                questionId = rs.getInt("id");
-                prompt = rs.getString("prompt");
-                optionsStr = rs.getString("options");
-                correctOptionIndex = rs.getInt("correct_option");
-                startTime = rs.getLong("start_time");
-                endTime = rs.getLong("end_time");
-                // preenche variaveis com os dados recebidos
-            }
-        }
-
-        if (questionId == -1) { // verifica que pergunta existe
+        QuestionStore.Question q = server.getQuestionCache().findByAccessCode(db, accessCode);
+        if (q == null) { // verifica que pergunta existe
             return new Message(Message.Type.EXPORT_CSV_RESPONSE, null);
         }
 
@@ -367,8 +364,8 @@ public class ClientHandler implements Runnable {
         DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm");
 
         // converte os timestamps para datas
-        LocalDateTime startDateTime = LocalDateTime.ofEpochSecond(startTime, 0, ZoneOffset.UTC);
-        LocalDateTime endDateTime = LocalDateTime.ofEpochSecond(endTime, 0, ZoneOffset.UTC);
+        LocalDateTime startDateTime = LocalDateTime.ofEpochSecond(q.startTime, 0, ZoneOffset.UTC);
+        LocalDateTime endDateTime = LocalDateTime.ofEpochSecond(q.endTime, 0, ZoneOffset.UTC);
 
         // formata as datas para as suas variaveis finais
         String dateStr = startDateTime.format(dateFormatter);
@@ -376,13 +373,13 @@ public class ClientHandler implements Runnable {
         String endTimeStr = endDateTime.format(timeFormatter);
 
         // variaveis para construir o csv
-        String[] options = optionsStr.split(",");
-        String correctOptionLabel = String.valueOf((char) ('a' + correctOptionIndex));
+        String[] options = q.options.split(",");
+        String correctOptionLabel = String.valueOf((char) ('a' + q.correctOption));
 
         // preenche o csv com as informacoes da pergunta
         csv.append("\"dia\";\"hora inicial\";\"hora final\";\"enunciado da pergunta\";\"opção certa\"\n");
         csv.append(String.format("\"%s\";\"%s\";\"%s\";\"%s\";\"%s\"\n",
-                dateStr, startTimeStr, endTimeStr, prompt.replace("\"", "\"\""), correctOptionLabel));
+                dateStr, startTimeStr, endTimeStr, q.prompt.replace("\"", "\"\""), correctOptionLabel));
 
         // preenche o csv com as opcoes
         csv.append("\"opção\";\"texto da opção\"\n");
@@ -397,170 +394,106 @@ public class ClientHandler implements Runnable {
 
         // preenche o csv com as respostas
         csv.append("\"número de estudante\"; \"nome\"; \"e-mail\";\"resposta\"\n");
-        // prepara a query para obter as respostas
-        String sqlAnswers = "SELECT a.answer_index, a.student_email, u.name, u.student_id " +
-                "FROM answers a " +
-                "JOIN users u ON a.student_email = u.email " +
-                "WHERE a.question_id = ?";
-        // executa a query
-        try (PreparedStatement pstmt = conn.prepareStatement(sqlAnswers)) {
-            pstmt.setInt(1, questionId);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                int answerIndex = rs.getInt("answer_index");
-                String answerLabel = String.valueOf((char) ('a' + answerIndex));
-                String studentId = rs.getString("student_id");
-                String name = rs.getString("name");
-                String email = rs.getString("student_email");
-                // adiciona as respostas ao csv
-                csv.append(String.format("\"%s\";\"%s\";\"%s\";\"%s\"\n",
-                        studentId != null ? studentId : "",
-                        name != null ? name : "",
-                        email,
-                        answerLabel));
-            }
+        for (AnswerStore.StudentAnswer a : AnswerStore.forQuestion(db, q.id)) {
+            String answerLabel = String.valueOf((char) ('a' + a.answerIndex));
+            // adiciona as respostas ao csv
+            csv.append(String.format("\"%s\";\"%s\";\"%s\";\"%s\"\n",
+                    a.studentId != null ? a.studentId : "",
+                    a.name != null ? a.name : "",
+                    a.email,
+                    answerLabel));
         }
         // devolve o csv para ser exportado pelo servidor
         return new Message(Message.Type.EXPORT_CSV_RESPONSE, csv.toString());
     }
 
-    private Message handleDeleteQuestion(String accessCode) throws SQLException {
-        Connection conn = dbManager.getConnection();
-
-        // prepara a query para obter o id da pergunta
-        int questionId = -1;
-        try (PreparedStatement ps = conn.prepareStatement("SELECT id FROM questions WHERE access_code = ?")) {
-            ps.setString(1, accessCode);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) // tenta obter o id da pergunta
-                questionId = rs.getInt("id");
-        }
-
-        if (questionId == -1) // se a pergunta nao existir
+    private Message handleDeleteQuestion(DatabaseManager.Lease db, String accessCode) throws SQLException {
+        // obtem o id da pergunta
+        QuestionStore.Question q = server.getQuestionCache().findByAccessCode(db, accessCode);
+        if (q == null) // se a pergunta nao existir
             return new Message(Message.Type.DELETE_QUESTION_RESPONSE, "Pergunta nao encontrada.");
 
         // verifica se a pergunta tem respostas
-        try (PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM answers WHERE question_id = ?")) {
-            ps.setInt(1, questionId);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next() && rs.getInt(1) > 0) { // se a pergunta tiver respostas nao pode eliminar
-                return new Message(Message.Type.DELETE_QUESTION_RESPONSE,
-                        "Nao pode eliminar: A pergunta ja tem respostas.");
-            }
+        if (AnswerStore.count(db, q.id) > 0) { // se a pergunta tiver respostas nao pode eliminar
+            return new Message(Message.Type.DELETE_QUESTION_RESPONSE,
+                    "Nao pode eliminar: A pergunta ja tem respostas.");
         }
 
         // elimina a pergunta
-        String sql = "DELETE FROM questions WHERE id = " + questionId;
-        server.executeUpdate(sql);
+        db.close();
+        if (!server.executeUpdate(QuestionStore.delete(q.id)))
+            return new Message(Message.Type.DELETE_QUESTION_RESPONSE, "Erro ao eliminar a pergunta.");
 
         return new Message(Message.Type.DELETE_QUESTION_RESPONSE, "Pergunta eliminada com sucesso.");
     }
 
-    private Message handleEditQuestion(String[] data) throws SQLException {
+    private Message handleEditQuestion(DatabaseManager.Lease db, String[] data) throws SQLException {
         // data: [accessCode, prompt, options, correctOption, startTime, endTime]
         String accessCode = data[0];
 
-        Connection conn = dbManager.getConnection();
-
         // Verificar se pergunta existe e obter dados atuais
-        int id = -1;
-        String currentPrompt = null, currentOptions = null;
-        int currentCorrect = -1;
-        long currentStart = 0, currentEnd = 0;
-
-        String selectSql = "SELECT * FROM questions WHERE access_code = ?";
-        try (PreparedStatement ps = conn.prepareStatement(selectSql)) {
-            ps.setString(1, accessCode);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                id = rs.getInt("id");
-                currentPrompt = rs.getString("prompt");
-                currentOptions = rs.getString("options");
-                currentCorrect = rs.getInt("correct_option");
-                currentStart = rs.getLong("start_time");
-                currentEnd = rs.getLong("end_time");
-            } else {
-                return new Message(Message.Type.EDIT_QUESTION_RESPONSE, false); // Nao existe
-            }
-        }
+        QuestionStore.Question q = server.getQuestionCache().findByAccessCode(db, accessCode);
+        if (q == null)
+            return new Message(Message.Type.EDIT_QUESTION_RESPONSE, false); // Nao existe
 
         // Verificar se tem respostas (impede edicao se ja tiver)
-        try (PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM answers WHERE question_id = ?")) {
-            ps.setInt(1, id);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next() && rs.getInt(1) > 0) {
-                return new Message(Message.Type.EDIT_QUESTION_RESPONSE, false);
-            }
+        if (AnswerStore.count(db, q.id) > 0) {
+            return new Message(Message.Type.EDIT_QUESTION_RESPONSE, false);
         }
 
         // Preparar novos valores (Lógica: Se vazio -> Mantém antigo)
-        String newPrompt = (data[1] == null || data[1].trim().isEmpty()) ? currentPrompt : normSql(data[1]);
-        String newOptions = (data[2] == null || data[2].trim().isEmpty()) ? currentOptions : normSql(data[2]);
+        String newPrompt = (data[1] == null || data[1].trim().isEmpty()) ? q.prompt : data[1];
+        String newOptions = (data[2] == null || data[2].trim().isEmpty()) ? q.options : data[2];
 
-        int newCorrect = currentCorrect;
+        int newCorrect = q.correctOption;
         if (data[3] != null && !data[3].trim().isEmpty()) {
             newCorrect = Integer.parseInt(data[3]);
         }
 
-        long newStart = currentStart;
+        long newStart = q.startTime;
         if (data[4] != null && !data[4].trim().isEmpty()) {
             newStart = parseDateToTimestamp(data[4]);
         }
 
-        long newEnd = currentEnd;
+        long newEnd = q.endTime;
         if (data[5] != null && !data[5].trim().isEmpty()) {
             newEnd = parseDateToTimestamp(data[5]);
         }
 
         // Executar Update
-        String updateSql = String.format(
-                "UPDATE questions SET prompt='%s', options='%s', correct_option=%d, start_time=%d, end_time=%d WHERE id=%d",
-                newPrompt, newOptions, newCorrect, newStart, newEnd, id);
-
-        server.executeUpdate(updateSql);
-        return new Message(Message.Type.EDIT_QUESTION_RESPONSE, true);
+        db.close();
+        boolean ok = server.executeUpdate(
+                QuestionStore.update(q.id, newPrompt, newOptions, newCorrect, newStart, newEnd));
+        return new Message(Message.Type.EDIT_QUESTION_RESPONSE, ok);
     }
 
-    private Message handleGetQuestionAnswers(String accessCode) throws SQLException {
-        Connection conn = dbManager.getConnection();
+    private Message handleGetQuestionAnswers(DatabaseManager.Lease db, String accessCode) throws SQLException {
         List<String> report = new ArrayList<>();
 
         // verifica se a pergunta existe e se esta expirada
-        int questionId = -1;
-        long endTime = 0;
-        try (PreparedStatement ps = conn.prepareStatement( // prepara query de verificacao
-                "SELECT id, end_time FROM questions WHERE access_code = ?")) {
-            ps.setString(1, accessCode);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                questionId = rs.getInt("id");
-                endTime = rs.getLong("end_time");
-            }
-        }
-
-        if (questionId == -1) // se a pergunta nao existir
+        QuestionStore.Question q = server.getQuestionCache().findByAccessCode(db, accessCode);
+        if (q == null) // se a pergunta nao existir
             return new Message(Message.Type.GET_QUESTION_ANSWERS_RESPONSE, null);
 
         long now = System.currentTimeMillis() / 1000; // obtem o timestamp atual
-        if (now < endTime) { // se a pergunta ainda nao expirou
+        if (now < q.endTime) { // se a pergunta ainda nao expirou
             report.add("Aviso: A pergunta ainda nao expirou."); // adiciona a mensagem de aviso ao relatorio
-        }
-        // prepara a query de selecao
-        String sql = "SELECT u.name, u.student_id, a.answer_index FROM answers a " +
-                "JOIN users u ON a.student_email = u.email " +
-                "WHERE a.question_id = ?";
-        // executa a query
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, questionId);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) { // percorre o resultado
-                String line = String.format("Aluno: %s (%s) - Resposta: %s",
-                        rs.getString("name"),
-                        rs.getString("student_id"),
-                        String.valueOf((char) ('a' + rs.getInt("answer_index"))));
-                report.add(line); // adiciona a linha ao relatorio
+            LiveAnswerMatrix live = server.getLiveAnswers().get(q.id);
+            if (live != null) { // contagens em tempo real, sem consultar a base de dados
+                int[] counts = live.counts();
+                StringBuilder tally = new StringBuilder("Respostas ate agora (" + live.total() + "):");
+                for (int i = 0; i < counts.length; i++)
+                    tally.append(' ').append((char) ('a' + i)).append('=').append(counts[i]);
+                report.add(tally.toString());
             }
         }
+        for (AnswerStore.StudentAnswer a : AnswerStore.forQuestion(db, q.id)) { // percorre as respostas
+            String line = String.format("Aluno: %s (%s) - Resposta: %s",
+                    a.name,
+                    a.studentId,
+                    String.valueOf((char) ('a' + a.answerIndex)));
+            report.add(line); // adiciona a linha ao relatorio
+        }
 
         if (report.isEmpty()) // se nao houver respostas
             report.add("Sem respostas submetidas.");
@@ -568,56 +501,30 @@ public class ClientHandler implements Runnable {
         return new Message(Message.Type.GET_QUESTION_ANSWERS_RESPONSE, report);
     }
 
-    private Message handleGetStudentHistory(String[] data) throws SQLException {
+    private Message handleGetStudentHistory(DatabaseManager.Lease db, String[] data) throws SQLException {
         // data = [email, filtro]
         String email = data[0];
         String filter = data[1]; // "TUDO", "CORRETO", "INCORRETO", "ULTIMAS_24H"
 
-        StringBuilder sql = new StringBuilder(); // cria a query
-        sql.append("SELECT q.prompt, q.options, q.correct_option, a.answer_index, a.timestamp ");
-        sql.append("FROM answers a ");
-        sql.append("JOIN questions q ON a.question_id = q.id ");
-        sql.append("WHERE a.student_email = ?");
-
-        // Aplica os filtros
-        if ("CORRECT".equalsIgnoreCase(filter)) {
-            sql.append(" AND a.answer_index = q.correct_option");
-        } else if ("INCORRECT".equalsIgnoreCase(filter)) {
-            sql.append(" AND a.answer_index != q.correct_option");
-        } else if ("LAST_24H".equalsIgnoreCase(filter)) {
-            long oneDayAgo = System.currentTimeMillis() - (24 * 60 * 60 * 1000);
-            sql.append(" AND a.timestamp >= ").append(oneDayAgo);
-        }
         List<String> history = new ArrayList<>(); // cria lista para armazenar o historico
 
-        Connection conn = dbManager.getConnection();
-        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
-            ps.setString(1, email);
-            ResultSet rs = ps.executeQuery();
+        for (AnswerStore.HistoryEntry h : AnswerStore.history(db, email, filter, System.currentTimeMillis())) {
+            boolean isCorrect = (h.answerIndex == h.correctOption);
+            String result = isCorrect ? "[CERTO]" : "[ERRADO]";
 
-            while (rs.next()) {
-                String prompt = rs.getString("prompt");
-                int myAnswerIdx = rs.getInt("answer_index");
-                int correctIdx = rs.getInt("correct_option");
-                long timestamp = rs.getLong("timestamp");
+            // converte o indice para letra
+            char myAnswerChar = (char) ('a' + h.answerIndex);
+            char correctChar = (char) ('a' + h.correctOption);
 
-                boolean isCorrect = (myAnswerIdx == correctIdx);
-                String result = isCorrect ? "[CERTO]" : "[ERRADO]";
+            // Formatar Data
+            String dateStr = java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm")
+                    .format(java.time.LocalDateTime.ofEpochSecond(h.timestamp / 1000, 0, java.time.ZoneOffset.UTC));
 
-                // converte o indice para letra
-                char myAnswerChar = (char) ('a' + myAnswerIdx);
-                char correctChar = (char) ('a' + correctIdx);
+            // Construir linha de resumo
+            String line = String.format("%s | %s | Sua resp: %c | Correta: %c | Data: %s",
+                    result, h.prompt, myAnswerChar, correctChar, dateStr);
 
-                // Formatar Data
-                String dateStr = java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm")
-                        .format(java.time.LocalDateTime.ofEpochSecond(timestamp / 1000, 0, java.time.ZoneOffset.UTC));
-
-                // Construir linha de resumo
-                String line = String.format("%s | %s | Sua resp: %c | Correta: %c | Data: %s",
-                        result, prompt, myAnswerChar, correctChar, dateStr);
-
-                history.add(line); // adiciona a linha construida ao historico
-            }
+            history.add(line); // adiciona a linha construida ao historico
         }
 
         if (history.isEmpty()) {
@@ -628,96 +535,43 @@ public class ClientHandler implements Runnable {
     }
 
 
-    private Message handleEditProfile(String[] data) throws SQLException {
+    private Message handleEditProfile(DatabaseManager.Lease db, String[] data) throws SQLException {
         // data: [email_antigo, novo_nome, nova_password, novo_email, novo_nr_estudante]
         String oldEmail = data[0];
-        String newName = normSql(data[1]);
-        String newPass = normSql(data[2]);
-        String newEmail = normSql(data[3]);
-        String newStudentId = normSql(data[4]);
-
-        Connection conn = dbManager.getConnection();
+        String newName = data[1];
+        String newPass = data[2];
+        String newEmail = data[3];
+        String newStudentId = data[4];
 
+        boolean emailChanged = newEmail != null && !newEmail.isEmpty() && !newEmail.equals(oldEmail);
         // Verificar se o novo email já existe (se for diferente do antigo)
-        if (newEmail != null && !newEmail.isEmpty() && !newEmail.equals(oldEmail)) {
-            try (PreparedStatement check = conn.prepareStatement("SELECT email FROM users WHERE email = ?")) {
-                check.setString(1, newEmail);
-                if (check.executeQuery().next()) {
-                    System.out.println("Erro: O novo email já está em uso.");
-                    return new Message(Message.Type.EDIT_PROFILE_RESPONSE, "EMAIL_DUPLICADO");
-                }
-            }
+        if (emailChanged && UserStore.exists(db, newEmail)) {
+            System.out.println("Erro: O novo email já está em uso.");
+            return new Message(Message.Type.EDIT_PROFILE_RESPONSE, "EMAIL_DUPLICADO");
         }
 
-        try {
-            // INICIA TRANSAÇÃO (Tudo ou nada)
-            conn.setAutoCommit(false);
-
-            // Construir query para atualizar a tabela USERS
-            StringBuilder sqlUser = new StringBuilder("UPDATE users SET ");
-            boolean first = true;
-
-            if (newName != null && !newName.isEmpty()) {
-                sqlUser.append("name = '").append(newName).append("'");
-                first = false;
-            }
-            if (newPass != null && !newPass.isEmpty()) {
-                if (!first) sqlUser.append(", ");
-                sqlUser.append("password = '").append(newPass).append("'");
-                first = false;
-            }
-            if (newStudentId != null && !newStudentId.isEmpty()) {
-                if (!first) sqlUser.append(", ");
-                sqlUser.append("student_id = '").append(newStudentId).append("'");
-                first = false;
-            }
-            // Atualiza o email por último na tabela users
-            if (newEmail != null && !newEmail.isEmpty() && !newEmail.equals(oldEmail)) {
-                if (!first) sqlUser.append(", ");
-                sqlUser.append("email = '").append(newEmail).append("'");
-            }
-
-            sqlUser.append(" WHERE email = '").append(oldEmail).append("'");
-
-
-            if (!first) {
-                try (Statement stmt = conn.createStatement()) {
-                    stmt.executeUpdate(sqlUser.toString());
-                }
-            }
-
-            // Atualização em Cascata (Se o email mudou)
-            if (newEmail != null && !newEmail.isEmpty() && !newEmail.equals(oldEmail)) {
-                // Atualizar quem criou as perguntas
-                String sqlQuestions = "UPDATE questions SET creator_email = ? WHERE creator_email = ?";
-                try (PreparedStatement pq = conn.prepareStatement(sqlQuestions)) {
-                    pq.setString(1, newEmail);
-                    pq.setString(2, oldEmail);
-                    pq.executeUpdate();
-                }
-
-                // Atualizar quem deu as respostas
-                String sqlAnswers = "UPDATE answers SET student_email = ? WHERE student_email = ?";
-                try (PreparedStatement pa = conn.prepareStatement(sqlAnswers)) {
-                    pa.setString(1, newEmail);
-                    pa.setString(2, oldEmail);
-                    pa.executeUpdate();
-                }
+        // Atualiza a tabela USERS, o email por último
+        Update userUpdate = UserStore.updateProfile(oldEmail, newName, newPass, newStudentId,
+                emailChanged ? newEmail : null);
+        if (userUpdate == null) // nada para alterar
+            return new Message(Message.Type.EDIT_PROFILE_RESPONSE, "SUCESSO");
 
-                // Se mudarmos o email, temos de avisar o resto do cluster (Servidores Backup)
-                String multicastFix = "UPDATE users SET email='"+newEmail+"' WHERE email='"+oldEmail+"'";
-                server.executeUpdate(multicastFix);
-            } else if (!first) {
-                server.executeUpdate(sqlUser.toString());
-            }
+        List<Update> updates = new ArrayList<>();
+        updates.add(userUpdate);
 
-            conn.commit();
-            conn.setAutoCommit(true); // Restaura modo normal
+        // Atualização em Cascata (Se o email mudou)
+        if (emailChanged) {
+            // Atualizar quem criou as perguntas e quem deu as respostas
+            updates.add(QuestionStore.changeCreator(oldEmail, newEmail));
+            updates.add(AnswerStore.changeStudent(oldEmail, newEmail));
+        }
 
+        try {
+            db.close();
+            // Tudo ou nada, numa transacao da ligacao de escrita; os backups recebem as mesmas escritas
+            server.executeUpdates(updates);
             return new Message(Message.Type.EDIT_PROFILE_RESPONSE, "SUCESSO");
-
         } catch (SQLException e) {
-            try { conn.rollback(); conn.setAutoCommit(true); } catch (SQLException ex) {} // Desfaz se der erro
             e.printStackTrace();
             return new Message(Message.Type.EDIT_PROFILE_RESPONSE, "ERRO_SQL");
         }
@@ -741,12 +595,6 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private String normSql(String input) { // funcao auxiliar para normalizar as aspas
-        if (input == null)
-            return null;
-        return input.replace("'", "''");
-    }
-
     private long parseDateToTimestamp(String dateStr) {
         try { // funcao auxiliar para converter uma string de data para um timestamp
             DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
@@ -759,14 +607,137 @@ public class ClientHandler implements Runnable {
     }
 
 
-    public synchronized void sendMessage(Message msg) {
-        try {
-            if (!socket.isClosed() && out != null) {
-                out.writeObject(msg);
+    // coloca a mensagem na fila de saida; sem writer quem responde tambem escreve
+    public void sendMessage(Message msg) {
+        if (!enqueue(msg))
+            return;
+        if (connection != null) // modo NIO, a escrita e feita pelo loop de I/O
+            connection.requestWrite();
+        else if (writer == null)
+            drainOutbound();
+    }
+
+    // notificacoes: a thread do fanout nunca escreve na socket, um cliente lento nao atrasa os outros.
+    // Sem writer a escrita e feita por uma tarefa propria desta ligacao (no maximo uma de cada vez),
+    // nunca pela pool dos pedidos nem por quem chama; um cliente que nao le so prende essa tarefa
+    // e e desligado ao fim de OUTBOUND_WRITE_STALL
+    void sendNotification(Message msg) {
+        if (!enqueue(msg))
+            return;
+        if (connection != null)
+            connection.requestWrite();
+        else if (writer == null && drainScheduled.compareAndSet(false, true))
+            server.startClientTask(() -> {
+                drainScheduled.set(false); // o que chegar a partir daqui agenda outra escrita
+                drainOutbound();
+            });
+    }
+
+    private boolean enqueue(Message msg) {
+        if (evicted)
+            return false;
+        if (!outbound.offer(msg)) {
+            onOverflow(msg);
+            return false;
+        }
+        return true;
+    }
+
+    // escreve tudo o que estiver na fila com um so flush; se outra thread ja esta a escrever
+    // deixa-lhe a mensagem, quem larga o lock volta a ver a fila para nao ficar nada para tras
+    private void drainOutbound() {
+        while (!outbound.isEmpty() && drainLock.tryLock()) {
+            try {
+                Message msg;
+                while ((msg = outbound.poll()) != null) {
+                    byte[] payload = codec.encode(msg);
+                    writingSince = System.nanoTime();
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                }
+                writingSince = System.nanoTime();
                 out.flush();
+            } catch (IOException e) {
+                try {
+                    socket.close(); // o run() trata de remover o cliente
+                } catch (IOException ex) {
+                    // ignora
+                }
+                return;
+            } finally {
+                writingSince = 0;
+                drainLock.unlock();
             }
+        }
+    }
+
+    // fila cheia: cliente lento, aplica a politica configurada
+    private void onOverflow(Message msg) {
+        if ("drop".equalsIgnoreCase(Constants.OUTBOUND_OVERFLOW_POLICY) && msg.getType() == Message.Type.NOTIFICATION) {
+            server.getMetrics().counter("saida.descartadas").increment();
+            return;
+        }
+        evicted = true;
+        server.getMetrics().counter("saida.clientes_expulsos").increment();
+        System.out.println("Cliente lento desligado (fila de saida cheia)");
+        if (connection != null) {
+            connection.closeAsync();
+        } else {
+            try {
+                socket.close(); // o run() termina e remove o cliente
+            } catch (IOException e) {
+                // ignora
+            }
+        }
+    }
+
+    // modo blocking, chamado periodicamente pelo servidor: uma mensagem a ser escrita ha mais de
+    // OUTBOUND_WRITE_STALL (cliente que nao le) desliga o cliente e desbloqueia a thread que escreve
+    void closeIfWriteStalled(long now) {
+        long since = writingSince;
+        if (socket == null || since == 0 || now - since < Constants.OUTBOUND_WRITE_STALL * 1_000_000L)
+            return;
+        evicted = true;
+        server.getMetrics().counter("saida.clientes_expulsos").increment();
+        System.out.println("Cliente lento desligado (escrita parada)");
+        try {
+            socket.close(); // o run() termina e remove o cliente
         } catch (IOException e) {
-            // Se der erro, o servidor trata de remover o cliente depois
+            // ignora
+        }
+    }
+
+    // usado pelo loop de I/O do modo NIO
+    Message pollOutbound() {
+        return outbound.poll();
+    }
+
+    int outboundDepth() {
+        return outbound.size();
+    }
+
+    // modo blocking: unica thread que escreve no socket desta ligacao
+    // writer dedicado, so com virtual threads
+    private void writeLoop() {
+        try {
+            while (!socket.isClosed()) {
+                Message msg = outbound.take();
+                writingSince = System.nanoTime();
+                byte[] payload = codec.encode(msg);
+                out.writeInt(payload.length);
+                out.write(payload);
+                if (outbound.isEmpty()) // junta varias mensagens pendentes num so flush
+                    out.flush();
+                writingSince = 0;
+            }
+        } catch (InterruptedException e) {
+            // ligacao terminada
+        } catch (IOException e) {
+            try {
+                socket.close(); // Se der erro, o run() trata de remover o cliente
+            } catch (IOException ex) {
+                // ignora
+            }
         }
     }
 }
@@ -1,19 +1,57 @@
 package server;
 
+import common.Constants;
+import common.Metrics;
+
 import java.sql.*;
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
 Responsável pela gestão da base de dados
+A base de dados abre em modo WAL com uma unica ligacao de escrita
+e uma pool de ligacoes so de leitura, emprestadas a cada pedido.
 */
 public class DatabaseManager {
     private String dbPath;
-    private Connection connection;
-    private int dbVersion = 0;
+    private Connection writer; // unica ligacao que escreve
+    private StatementCache writerStatements; // statements da ligacao de escrita, usados com o writeLock
+    private BlockingQueue<StatementCache> readers; // pool de ligacoes de leitura, cada uma com a sua cache
+    private volatile boolean open = false;
+    private volatile int dbVersion = 0;
+    private static final String BUMP_VERSION_SQL = "UPDATE config SET value = ? WHERE key = 'version'";
+    private static final String LAST_INSERT_ID_SQL = "SELECT last_insert_rowid()";
+    static final String QUESTION_TIMERS =
+            "SELECT id, prompt, start_time, end_time FROM questions WHERE end_time >= ? AND start_time <= ?";
+    // ReentrantLock em vez de synchronized para nao prender a carrier thread durante o JDBC
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // leituras que esperam pela versao vista pelo cliente (backups, read-your-writes)
+    private final ReentrantLock versionLock = new ReentrantLock();
+    private final Condition versionAdvanced = versionLock.newCondition();
+    private final AtomicInteger versionWaiters = new AtomicInteger();
+
+    // metricas da pool de leitura
+    private final Metrics metrics;
+    private final AtomicInteger readersInUse = new AtomicInteger();
+    private final AtomicLong maxWaitMicros = new AtomicLong();
 
     public DatabaseManager(String dbPath) {
+        this(dbPath, new Metrics("db"));
+    }
+
+    public DatabaseManager(String dbPath, Metrics metrics) {
         this.dbPath = dbPath;
+        this.metrics = metrics;
+        metrics.gauge("db.leitores_em_uso", readersInUse::get);
+        metrics.gauge("db.leitores_total", () -> Constants.DB_READ_POOL_SIZE);
+        metrics.gauge("db.espera_max_us", maxWaitMicros::get);
     }
 
     public void connect() throws SQLException {
@@ -24,24 +62,48 @@ public class DatabaseManager {
         }
 
         String url = "jdbc:sqlite:" + dbPath;
-        connection = DriverManager.getConnection(url);
+        writer = DriverManager.getConnection(url);
+        try (Statement stmt = writer.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL"); // leitores nao bloqueiam o escritor
+            stmt.execute("PRAGMA synchronous=NORMAL"); // em WAL so sincroniza no checkpoint
+            stmt.execute("PRAGMA busy_timeout=" + Constants.DB_BUSY_TIMEOUT);
+            stmt.execute("PRAGMA cache_size=-16000"); // 16MB de cache de paginas
+            stmt.execute("PRAGMA temp_store=MEMORY");
+        }
         System.out.println("Base de dados iniciada: " + dbPath);
 
         initialize();
+        SchemaMigrations.migrate(writer); // indices e outras alteracoes versionadas do esquema
+        writerStatements = new StatementCache(writer);
+
+        // ligacoes de leitura so depois das tabelas existirem
+        readers = new ArrayBlockingQueue<>(Constants.DB_READ_POOL_SIZE);
+        for (int i = 0; i < Constants.DB_READ_POOL_SIZE; i++) {
+            Connection reader = DriverManager.getConnection(url);
+            try (Statement stmt = reader.createStatement()) {
+                stmt.execute("PRAGMA query_only=1");
+                stmt.execute("PRAGMA busy_timeout=" + Constants.DB_BUSY_TIMEOUT);
+                stmt.execute("PRAGMA cache_size=-4000");
+                stmt.execute("PRAGMA temp_store=MEMORY");
+                stmt.execute("PRAGMA mmap_size=268435456"); // leituras por mmap ate 256MB
+            }
+            readers.add(new StatementCache(reader));
+        }
+        open = true;
     }
 
     private void initialize() throws SQLException {
-        try (Statement stmt = connection.createStatement()) {
+        try (Statement stmt = writer.createStatement()) {
             // cria tabela de configuração para gerir versões
             stmt.execute("CREATE TABLE IF NOT EXISTS config (key TEXT PRIMARY KEY, value TEXT)");
 
             // verifica a versão
             ResultSet rs = stmt.executeQuery("SELECT value FROM config WHERE key = 'version'");
             if (rs.next()) {
-                dbVersion = Integer.parseInt(rs.getString("value"));
+                setVersion(Integer.parseInt(rs.getString("value")));
             } else {
                 stmt.execute("INSERT INTO config (key, value) VALUES ('version', '0')");
-                dbVersion = 0;
+                setVersion(0);
             }
 
             // cria tabela de users (docentes e estudantes)
@@ -87,21 +149,241 @@ public class DatabaseManager {
         return dbVersion;
     }
 
-    public synchronized void executeUpdate(String sql) throws SQLException {
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(sql);
-            dbVersion++;
-            stmt.execute("UPDATE config SET value = '" + dbVersion + "' WHERE key = 'version'");
+    // espera ate 'timeoutMillis' que a versao local chegue a 'version'; false se nao chegou
+    public boolean awaitVersion(int version, long timeoutMillis) throws InterruptedException {
+        if (dbVersion >= version)
+            return true;
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        versionLock.lock();
+        versionWaiters.incrementAndGet();
+        try {
+            while (dbVersion < version) {
+                if (nanos <= 0)
+                    return false;
+                nanos = versionAdvanced.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            versionWaiters.decrementAndGet();
+            versionLock.unlock();
+        }
+    }
+
+    // so acorda alguem se houver leituras a espera, o commit normal nao paga o lock
+    private void setVersion(int version) {
+        dbVersion = version;
+        if (versionWaiters.get() > 0) {
+            versionLock.lock();
+            try {
+                versionAdvanced.signalAll();
+            } finally {
+                versionLock.unlock();
+            }
+        }
+    }
+
+    // escritas replicadas (versoes seguidas a partir da atual) numa so transacao
+    // o mesmo caminho do primario: statements em cache na ligacao de escrita,
+    // e o backup tambem guarda o log, pode vir a ser primario
+    public void applyReplicated(List<Update> updates) throws SQLException {
+        executeUpdates(updates);
+    }
+
+    // escrita parametrizada com o statement em cache na ligacao de escrita
+    public void executeUpdate(Update update) throws SQLException {
+        executeUpdates(List.of(update));
+    }
+
+    // executa varias escritas numa unica transacao (tudo ou nada) na ligacao de escrita
+    // cada escrita conta como uma versao; devolve a versao da primeira
+    public int executeUpdates(List<Update> updates) throws SQLException {
+        writeLock.lock();
+        int firstVersion = dbVersion + 1;
+        try {
+            writer.setAutoCommit(false);
+            try {
+                int version = dbVersion;
+                for (Update update : updates) {
+                    write(update, ++version);
+                }
+                bumpVersion(version);
+                writer.commit();
+                setVersion(version);
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            } finally {
+                writer.setAutoCommit(true);
+            }
+            compactLogIfNeeded(updates.size());
+        } finally {
+            writeLock.unlock();
         }
+        return firstVersion;
     }
 
-    public Connection getConnection() {
-        return connection;
+    // lote do group commit: varias unidades numa transacao com um so commit
+    // cada unidade fica isolada por um SAVEPOINT; uma unidade que falha e desfeita,
+    // fica com o erro em errors[i] e nao gasta versoes. Devolve a versao da primeira
+    // escrita de cada unidade. Se o commit falhar nada fica escrito e lanca a excecao.
+    // As unidades tem de ser mutaveis: os INSERT com chave gerada sao trocados pelos com a chave.
+    public int[] executeBatch(List<List<Update>> units, SQLException[] errors) throws SQLException {
+        writeLock.lock();
+        int[] versions = new int[units.size()];
+        int written = 0;
+        try {
+            writer.setAutoCommit(false);
+            try {
+                int next = dbVersion + 1;
+                for (int i = 0; i < units.size(); i++) {
+                    List<Update> unit = units.get(i);
+                    writerStatements.prepare("SAVEPOINT unidade").execute();
+                    try {
+                        int version = next;
+                        for (int j = 0; j < unit.size(); j++) {
+                            unit.set(j, write(unit.get(j), version++)); // o log e desfeito com a unidade se falhar
+                        }
+                        writerStatements.prepare("RELEASE unidade").execute();
+                        versions[i] = next;
+                        next += unit.size();
+                    } catch (SQLException e) {
+                        writerStatements.prepare("ROLLBACK TO unidade").execute();
+                        writerStatements.prepare("RELEASE unidade").execute();
+                        errors[i] = e;
+                    }
+                }
+                int last = next - 1;
+                if (last > dbVersion)
+                    bumpVersion(last); // uma so atualizacao da versao por lote
+                writer.commit();
+                written = last - dbVersion;
+                setVersion(last);
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            } finally {
+                writer.setAutoCommit(true);
+            }
+            compactLogIfNeeded(written);
+        } finally {
+            writeLock.unlock();
+        }
+        return versions;
+    }
+
+    // aplica uma escrita e guarda-a no log; um INSERT com chave gerada passa a levar
+    // a chave que o SQLite atribuiu, e essa versao que vai para o log e para os backups
+    private Update write(Update update, int version) throws SQLException {
+        PreparedStatement ps = writerStatements.prepare(update.getSql());
+        update.bind(ps);
+        ps.executeUpdate();
+        if (update.getGeneratedKey() != null) {
+            try (ResultSet rs = writerStatements.prepare(LAST_INSERT_ID_SQL).executeQuery()) {
+                rs.next();
+                update = update.withKey(rs.getLong(1));
+            }
+        }
+        byte[] change = update.encode();
+        if (change.length > Constants.REPLICATION_ENTRY_LIMIT) // nenhum backup a conseguia receber
+            throw new SQLException("Escrita demasiado grande para replicar: " + change.length + " bytes");
+        appendLog(version, change);
+        return update;
+    }
+
+    // entrada do log de replicacao, na mesma transacao que a escrita
+    private void appendLog(int version, byte[] change) throws SQLException {
+        PreparedStatement ps = writerStatements.prepare(ReplicationLog.APPEND);
+        ps.setInt(1, version);
+        ps.setBytes(2, change);
+        ps.executeUpdate();
+    }
+
+    // apaga as entradas mais antigas que a retencao, a cada LOG_COMPACT_EVERY versoes
+    // (chamado com o writeLock, depois do commit; uma falha aqui nao desfaz a escrita,
+    // so fica registada e a compactacao volta a ser tentada mais a frente)
+    private void compactLogIfNeeded(int written) {
+        if (Constants.REPLICATION_LOG_RETAIN <= 0 || written <= 0)
+            return;
+        int every = Math.max(1, Constants.REPLICATION_LOG_COMPACT_EVERY);
+        if (dbVersion / every == (dbVersion - written) / every)
+            return;
+        try {
+            PreparedStatement ps = writerStatements.prepare(ReplicationLog.TRUNCATE);
+            ps.setInt(1, dbVersion - Constants.REPLICATION_LOG_RETAIN);
+            int removed = ps.executeUpdate();
+            if (removed > 0)
+                metrics.counter("replog.compactadas").add(removed);
+        } catch (SQLException e) {
+            System.out.println("Erro ao compactar o log de replicacao: " + e.getMessage());
+        }
+    }
+
+    // a versao continua guardada como texto na tabela config
+    private void bumpVersion(int version) throws SQLException {
+        PreparedStatement ps = writerStatements.prepare(BUMP_VERSION_SQL);
+        ps.setString(1, String.valueOf(version));
+        ps.executeUpdate();
+    }
+
+    // copia consistente para target com VACUUM INTO, numa ligacao propria (as da pool sao
+    // query_only) e sem bloquear o escritor; devolve a versao que a copia representa
+    public int snapshotTo(File target) throws SQLException {
+        target.delete();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA busy_timeout=" + Constants.DB_BUSY_TIMEOUT);
+            }
+            try (PreparedStatement ps = conn.prepareStatement("VACUUM INTO ?")) {
+                ps.setString(1, target.getPath());
+                ps.execute();
+            }
+        }
+        // a versao vem da propria copia, e a do instante em que foi feita
+        try (Connection copy = DriverManager.getConnection("jdbc:sqlite:" + target.getPath());
+                Statement stmt = copy.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT value FROM config WHERE key = 'version'")) {
+            return rs.next() ? Integer.parseInt(rs.getString(1)) : 0;
+        }
+    }
+
+    // empresta uma ligacao de leitura, deve ser devolvida com close() (try-with-resources)
+    public Lease acquireReader() throws SQLException {
+        BlockingQueue<StatementCache> pool = readers;
+        if (pool == null)
+            throw new SQLException("Base de dados fechada");
+        StatementCache conn = pool.poll();
+        if (conn == null) { // pool esgotada, espera por uma ligacao livre
+            long start = System.nanoTime();
+            try {
+                conn = pool.poll(Constants.DB_POOL_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrompido a espera de uma ligacao de leitura");
+            }
+            long waited = (System.nanoTime() - start) / 1000;
+            metrics.counter("db.esperas").increment();
+            metrics.counter("db.espera_total_us").add(waited);
+            maxWaitMicros.accumulateAndGet(waited, Math::max);
+            if (conn == null)
+                throw new SQLException("Sem ligacoes de leitura disponiveis");
+        }
+        metrics.counter("db.emprestimos").increment();
+        readersInUse.incrementAndGet();
+        return new Lease(conn, pool);
     }
 
     public void close() throws SQLException {
-        if (connection != null && !connection.isClosed()) {
-            connection.close();
+        open = false;
+        if (readers != null) {
+            StatementCache conn;
+            while ((conn = readers.poll()) != null) {
+                conn.close();
+            }
+        }
+        if (writerStatements != null) {
+            writerStatements.close(); // fecha tambem a ligacao de escrita
+        } else if (writer != null && !writer.isClosed()) {
+            writer.close();
         }
     }
 
@@ -109,6 +391,41 @@ public class DatabaseManager {
         return dbPath;
     }
 
+    // ligacao emprestada da pool de leitura
+    public final class Lease implements AutoCloseable {
+        private final StatementCache conn;
+        private final BlockingQueue<StatementCache> pool;
+        private boolean released = false; // close() pode ser chamado antes do fim do try
+
+        private Lease(StatementCache conn, BlockingQueue<StatementCache> pool) {
+            this.conn = conn;
+            this.pool = pool;
+        }
+
+        public Connection connection() {
+            return conn.connection();
+        }
+
+        // statement em cache nesta ligacao, nao deve ser fechado por quem o usa
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return conn.prepare(sql);
+        }
+
+        // devolve a ligacao a pool; as escritas chamam-no antes de esperar pelo group commit
+        @Override
+        public void close() throws SQLException {
+            if (released)
+                return;
+            released = true;
+            readersInUse.decrementAndGet();
+            if (open && pool == readers) {
+                pool.offer(conn);
+            } else {
+                conn.close(); // a pool foi fechada/recriada entretanto
+            }
+        }
+    }
+
 
     // Classe auxiliar interna para transportar dados do timer
     public static class QuestionTimerData {
@@ -125,23 +442,25 @@ public class DatabaseManager {
         }
     }
 
-    public List<QuestionTimerData> getAllQuestionTimers() throws SQLException {
+    // perguntas que ja comecaram e que terminam depois de 'since' (segundos)
+    // usa o indice de end_time em vez de percorrer a tabela toda a cada verificacao
+    public List<QuestionTimerData> getQuestionTimers(long since, long now) throws SQLException {
         java.util.List<QuestionTimerData> list = new java.util.ArrayList<>();
-        String sql = "SELECT id, prompt, start_time, end_time FROM questions";
-
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            while (rs.next()) {
-                list.add(new QuestionTimerData(
-                        rs.getInt("id"),
-                        rs.getString("prompt"),
-                        rs.getLong("start_time"),
-                        rs.getLong("end_time")
-                ));
+        try (Lease lease = acquireReader()) {
+            PreparedStatement ps = lease.prepare(QUESTION_TIMERS);
+            ps.setLong(1, since);
+            ps.setLong(2, now);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    list.add(new QuestionTimerData(
+                            rs.getInt("id"),
+                            rs.getString("prompt"),
+                            rs.getLong("start_time"),
+                            rs.getLong("end_time")
+                    ));
+                }
             }
         }
         return list;
     }
 }
-
@@ -0,0 +1,154 @@
+package server;
+
+import common.Metrics;
+import common.ThreadSupport;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/*
+    Escritor unico com group commit
+    Os pedidos de escrita entram numa fila e uma thread aplica-os em lotes,
+    numa so transacao com um unico commit. Cada escrita continua a ter a sua versao.
+    Cada pedido e uma unidade (uma ou mais escritas, tudo ou nada) isolada por um
+    SAVEPOINT, uma unidade que falha nao estraga o resto do lote.
+    Quem pediu so e libertado depois do commit e de as escritas serem publicadas.
+ */
+public class GroupCommitWriter {
+    private final DatabaseManager dbManager;
+    private final BiConsumer<Integer, Update> onCommit; // publica cada escrita (versao, update), por ordem
+    private final BlockingQueue<Unit> queue = new LinkedBlockingQueue<>();
+    private final long windowNanos;
+    private final int maxBatch;
+    private final long timeoutMillis;
+    private final Metrics metrics;
+    private final AtomicLong maxBatchSeen = new AtomicLong();
+
+    public GroupCommitWriter(DatabaseManager dbManager, BiConsumer<Integer, Update> onCommit,
+            int windowMicros, int maxBatch, int timeoutMillis, Metrics metrics) {
+        this.dbManager = dbManager;
+        this.onCommit = onCommit;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.timeoutMillis = timeoutMillis;
+        this.metrics = metrics;
+        metrics.gauge("escrita.fila", queue::size);
+        metrics.gauge("escrita.lote_max", maxBatchSeen::get);
+    }
+
+    public void start() {
+        ThreadSupport.startBackground("group-commit", this::run);
+    }
+
+    // pede uma unidade de escritas, o futuro recebe a versao da primeira
+    public CompletableFuture<Integer> submit(List<Update> updates) {
+        Unit unit = new Unit(updates);
+        queue.add(unit);
+        return unit.result;
+    }
+
+    // versao bloqueante, espera pelo commit do lote no maximo timeoutMillis;
+    // se o tempo acabar a escrita pode ainda ser feita, mas quem pediu recebe erro
+    public int execute(List<Update> updates) throws SQLException {
+        try {
+            return submit(updates).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrompido a espera do commit");
+        } catch (TimeoutException e) {
+            metrics.counter("escrita.timeouts").increment();
+            throw new SQLException("Tempo esgotado a espera do commit");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Unit> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+                // so espera pela janela se houver concorrencia, um escritor sozinho nao paga latencia
+                if (batch.size() > 1 && batch.size() < maxBatch && windowNanos > 0) {
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < maxBatch) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0)
+                            break;
+                        Unit next = queue.poll(left, TimeUnit.NANOSECONDS);
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                        queue.drainTo(batch, maxBatch - batch.size());
+                    }
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // erro inesperado (fora do SQL): ninguem pode ficar a espera de um lote perdido
+                e.printStackTrace();
+                SQLException failure = new SQLException("Erro no group commit", e);
+                for (Unit unit : batch)
+                    unit.result.completeExceptionally(failure); // sem efeito nas ja completas
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Unit> batch) {
+        List<List<Update>> units = new ArrayList<>(batch.size());
+        for (Unit unit : batch)
+            units.add(unit.updates);
+        SQLException[] errors = new SQLException[batch.size()];
+        int[] versions;
+        try {
+            versions = dbManager.executeBatch(units, errors);
+        } catch (SQLException e) { // o commit falhou, nada foi escrito
+            for (Unit unit : batch)
+                unit.result.completeExceptionally(e);
+            return;
+        }
+        metrics.counter("escrita.lotes").increment();
+        metrics.counter("escrita.unidades").add(batch.size());
+        maxBatchSeen.accumulateAndGet(batch.size(), Math::max);
+
+        // publica pela ordem das versoes antes de libertar quem pediu
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] != null)
+                continue;
+            int version = versions[i];
+            for (Update update : batch.get(i).updates)
+                onCommit.accept(version++, update);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] != null) {
+                batch.get(i).result.completeExceptionally(errors[i]);
+            } else {
+                batch.get(i).result.complete(versions[i]);
+            }
+        }
+    }
+
+    private static final class Unit {
+        final List<Update> updates;
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        Unit(List<Update> updates) {
+            this.updates = new ArrayList<>(updates); // o executeBatch troca os INSERT pelos com a chave gerada
+        }
+    }
+}
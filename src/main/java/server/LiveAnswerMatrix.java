@@ -0,0 +1,118 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Respostas de uma pergunta ativa, em memoria e com arrays primitivos
+    Cada aluno tem um indice denso (LiveAnswers.studentIndex) que e a posicao no bitset.
+    - claimed: respostas aceites ou a caminho da base de dados (verificacao de duplicados)
+    - recorded: respostas ja gravadas, sao estas que entram nas contagens por opcao
+ */
+public class LiveAnswerMatrix {
+    private final int questionId;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long[] claimed = new long[4];
+    private long[] recorded = new long[4];
+    private int[] optionCounts;
+    private int total;
+
+    LiveAnswerMatrix(int questionId, int options) {
+        this.questionId = questionId;
+        this.optionCounts = new int[Math.max(1, options)];
+    }
+
+    public int getQuestionId() {
+        return questionId;
+    }
+
+    // reserva a resposta do aluno, false se ja tinha respondido
+    public boolean tryClaim(int student) {
+        lock.lock();
+        try {
+            ensure(student);
+            if (get(claimed, student))
+                return false;
+            set(claimed, student);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a escrita falhou, liberta a reserva (se a resposta nao chegou a ser gravada)
+    public void unclaim(int student) {
+        lock.lock();
+        try {
+            ensure(student);
+            if (!get(recorded, student))
+                claimed[student >>> 6] &= ~(1L << student);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // resposta gravada (commit local, update replicado ou carregamento inicial)
+    public void record(int student, int option) {
+        lock.lock();
+        try {
+            ensure(student);
+            if (get(recorded, student))
+                return;
+            set(recorded, student);
+            set(claimed, student);
+            if (option >= optionCounts.length)
+                optionCounts = Arrays.copyOf(optionCounts, option + 1);
+            if (option >= 0)
+                optionCounts[option]++;
+            total++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasAnswered(int student) {
+        lock.lock();
+        try {
+            return student < claimed.length << 6 && get(claimed, student);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // copia das contagens por opcao
+    public int[] counts() {
+        lock.lock();
+        try {
+            return optionCounts.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int total() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensure(int student) {
+        int words = (student >>> 6) + 1;
+        if (words > claimed.length) {
+            int size = Math.max(words, claimed.length * 2);
+            claimed = Arrays.copyOf(claimed, size);
+            recorded = Arrays.copyOf(recorded, size);
+        }
+    }
+
+    private static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import common.Metrics;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Matrizes de respostas das perguntas ativas (ver activeQuestionIds no Server)
+    Carregadas quando a pergunta comeca e libertadas quando expira.
+    Sao atualizadas pelas escritas ja gravadas: o commit local no primario e
+    os updates replicados nos backups, ambos chegam aqui como Update.
+ */
+public class LiveAnswers {
+
+    private final DatabaseManager dbManager;
+    private final Map<Integer, LiveAnswerMatrix> active = new ConcurrentHashMap<>();
+    // indice denso de cada aluno, igual para todas as perguntas
+    private final Map<String, Integer> students = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStudent = new AtomicInteger();
+
+    public LiveAnswers(DatabaseManager dbManager, Metrics metrics) {
+        this.dbManager = dbManager;
+        metrics.gauge("respostas.perguntas_ativas", active::size);
+        metrics.gauge("respostas.alunos_indexados", students::size);
+    }
+
+    public int studentIndex(String email) {
+        return students.computeIfAbsent(email, e -> nextStudent.getAndIncrement());
+    }
+
+    public LiveAnswerMatrix get(int questionId) {
+        return active.get(questionId);
+    }
+
+    // regista a matriz antes de a carregar, as respostas gravadas entretanto
+    // tambem lhe chegam e o record ignora repeticoes
+    public void activate(int questionId) {
+        try (DatabaseManager.Lease db = dbManager.acquireReader()) {
+            QuestionStore.Question q = QuestionStore.findById(db, questionId);
+            if (q == null)
+                return;
+            LiveAnswerMatrix matrix = new LiveAnswerMatrix(questionId, q.options.split(",").length);
+            if (active.putIfAbsent(questionId, matrix) != null)
+                return;
+            AnswerStore.answersOf(db, questionId, (email, option) -> matrix.record(studentIndex(email), option));
+        } catch (SQLException e) {
+            active.remove(questionId); // sem matriz o servidor volta a verificar na base de dados
+            e.printStackTrace();
+        }
+    }
+
+    public void release(int questionId) {
+        active.remove(questionId);
+    }
+
+    // chamado depois de cada escrita gravada (local ou replicada)
+    public void onWrite(Update update) {
+        if (active.isEmpty() || !AnswerStore.TABLE.equals(update.getTable()))
+            return;
+        if (update.getOp() == Update.Op.INSERT) {
+            LiveAnswerMatrix matrix = active.get(((Number) update.get("question_id")).intValue());
+            if (matrix != null)
+                matrix.record(studentIndex((String) update.get("student_email")),
+                        ((Number) update.get("answer_index")).intValue());
+        } else {
+            reloadAll(); // raro (mudanca de email)
+        }
+    }
+
+    // recarrega as perguntas ativas da base de dados (ex: depois de receber uma copia completa)
+    public void reloadAll() {
+        for (Integer questionId : active.keySet()) {
+            release(questionId);
+            activate(questionId);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package server;
+
+import common.Constants;
+import common.FrameCodec;
+import common.JavaMessageCodec;
+import common.Message;
+import common.MessageCodec;
+import common.ThreadSupport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Modo de transporte baseado em eventos (ServerSocketChannel + Selector)
+    Poucas threads de I/O leem os frames dos clientes e entregam os pedidos
+    a uma pool limitada de workers que corre o handleRequest do ClientHandler.
+    O numero de ligacoes deixa de definir o numero de threads.
+ */
+public class NioTransport {
+    private final Server server;
+    private final DatabaseManager dbManager;
+    private final int port;
+    private final IoLoop[] loops;
+    private final ThreadPoolExecutor workers;
+    // ligacoes paradas porque a fila dos workers estava cheia, retomadas quando ha espaco
+    private final Queue<Connection> waitingForWorkers = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running;
+    private int nextLoop = 0;
+
+    public NioTransport(Server server, DatabaseManager dbManager, int port, AtomicBoolean running,
+            int ioThreads, int workerThreads, int workerQueue) {
+        this.server = server;
+        this.dbManager = dbManager;
+        this.port = port;
+        this.running = running;
+        this.loops = new IoLoop[ioThreads];
+
+        // pool limitada; com a fila cheia o pedido e recusado e a ligacao deixa de ser lida
+        // (sem OP_READ) ate haver espaco, o loop de I/O nunca corre pedidos
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(workerQueue), ThreadSupport.taskFactory("nio-worker")) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable error) {
+                resumeWaiting(); // uma por pedido terminado
+            }
+        };
+    }
+
+    // retoma a primeira ligacao a espera de espaco na fila dos workers
+    private void resumeWaiting() {
+        Connection waiting = waitingForWorkers.poll();
+        if (waiting != null)
+            waiting.loop.execute(waiting::takeTurn);
+    }
+
+    // loop de aceitacao, corre na thread que chama
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                Selector selector = Selector.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop();
+                ThreadSupport.startBackground("nio-io-" + i, loops[i]);
+            }
+            System.out.println("Transporte NIO ativo: " + loops.length + " threads de I/O, "
+                    + workers.getMaximumPoolSize() + " workers");
+
+            while (running.get()) {
+                selector.select(1000);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel == null)
+                            continue;
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        // distribui as ligacoes pelos loops em round robin
+                        loops[nextLoop].register(channel);
+                        nextLoop = (nextLoop + 1) % loops.length;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // thread de I/O com o seu proprio selector
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection conn = new Connection(channel, this);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // corre uma tarefa dentro da thread do loop
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                conn.onReadable();
+                            if (key.isValid() && key.isWritable())
+                                conn.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            conn.close(); // cliente desconectou
+                        } catch (RuntimeException e) {
+                            // frame invalido, pedido recusado, etc: so esta ligacao e fechada,
+                            // o loop continua a servir as outras
+                            System.out.println("Erro numa ligacao NIO, a fechar: " + e);
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // estado de cada cliente ligado em modo NIO
+    final class Connection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final ClientHandler handler;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private ByteBuffer pendingWrite; // frame a meio de ser escrito no socket
+        private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+        // back-pressure: pedidos desta ligacao nos workers e leitura parada (so muda no loop)
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean readPaused = false;
+        private Message parked; // pedido recusado pela pool, reenviado no resume
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile MessageCodec codec; // null ate ao primeiro frame (negociacao)
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.handler = new ClientHandler(this, dbManager, server);
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            processFrames();
+        }
+
+        // trata os frames completos do buffer (em modo leitura) e compacta-o;
+        // para se a ligacao ficar parada, os frames seguintes esperam no buffer
+        private void processFrames() throws IOException {
+            while (!readPaused && readBuffer.remaining() >= FrameCodec.HEADER_SIZE) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < 0 || length > FrameCodec.MAX_FRAME_SIZE) {
+                    throw new IOException("Tamanho de frame invalido: " + length);
+                }
+                int frameSize = FrameCodec.HEADER_SIZE + length;
+                if (readBuffer.remaining() < frameSize) {
+                    if (readBuffer.capacity() < frameSize) {
+                        // frame maior que o buffer, aumenta-o para caber a mensagem toda
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.max(frameSize, readBuffer.capacity() * 2));
+                        bigger.put(readBuffer);
+                        readBuffer = bigger;
+                        return;
+                    }
+                    break;
+                }
+                int start = readBuffer.position() + FrameCodec.HEADER_SIZE;
+                readBuffer.position(start + length);
+                if (codec == null) {
+                    onFirstFrame(readBuffer.array(), start, length);
+                } else {
+                    dispatch(codec.decode(readBuffer.array(), start, length));
+                }
+            }
+            readBuffer.compact();
+        }
+
+        // drena a fila de saida do ClientHandler enquanto o socket aceitar dados
+        void onWritable() throws IOException {
+            while (true) {
+                if (pendingWrite == null) {
+                    Message msg = handler.pollOutbound();
+                    if (msg == null)
+                        break;
+                    pendingWrite = frame(codec.encode(msg));
+                }
+                channel.write(pendingWrite);
+                if (pendingWrite.hasRemaining())
+                    return; // socket cheio, continua quando voltar a ficar disponivel
+                pendingWrite = null;
+            }
+            writeRequested.set(false);
+            updateInterest();
+            if (handler.outboundDepth() > 0) // chegou uma mensagem entretanto
+                requestWrite();
+        }
+
+        // primeiro frame: HELLO com os codecs do cliente ou pedido em serializacao Java
+        private void onFirstFrame(byte[] data, int offset, int length) throws IOException {
+            if (FrameCodec.isHello(data, offset, length)) {
+                codec = FrameCodec.negotiate(data, offset, length);
+                pendingWrite = frame(FrameCodec.helloReply(codec));
+                writeRequested.set(true);
+                updateInterest();
+                server.addClient(handler);
+            } else {
+                codec = JavaMessageCodec.INSTANCE;
+                server.addClient(handler);
+                dispatch(codec.decode(data, offset, length));
+            }
+        }
+
+        // cada pedido vai para a pool, pedidos da mesma ligacao podem correr em paralelo
+        // e as respostas sao associadas pelo requestId. Com MAX_PIPELINED_REQUESTS em curso
+        // ou a fila dos workers cheia a ligacao para de ser lida (corre no loop de I/O)
+        private void dispatch(Message request) {
+            server.requestQueued();
+            inFlight.incrementAndGet();
+            try {
+                workers.execute(() -> {
+                    try {
+                        handler.sendMessage(handler.handleRequest(request));
+                    } finally {
+                        server.requestDone();
+                        if (inFlight.decrementAndGet() < Constants.MAX_PIPELINED_REQUESTS && readPaused)
+                            loop.execute(this::resume);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                server.requestDone();
+                if (workers.isShutdown())
+                    throw e; // servidor a terminar, o loop fecha a ligacao
+                parked = request;
+                pause();
+                waitingForWorkers.add(this);
+                server.getMetrics().counter("nio.leituras_paradas").increment();
+                if (workers.getQueue().remainingCapacity() > 0)
+                    resumeWaiting(); // a fila esvaziou antes de esta ligacao ficar na espera
+                return;
+            }
+            if (inFlight.get() >= Constants.MAX_PIPELINED_REQUESTS) {
+                pause();
+                if (inFlight.get() < Constants.MAX_PIPELINED_REQUESTS)
+                    loop.execute(this::resume); // um worker terminou antes de ver a pausa
+            }
+        }
+
+        private void pause() {
+            if (!readPaused) {
+                readPaused = true;
+                updateInterest();
+            }
+        }
+
+        // vez dada pela fila de espera: se a ligacao ja foi retomada por outro caminho
+        // (ou fechou) passa a vez a seguinte para nao perder o espaco livre
+        private void takeTurn() {
+            if (closed.get() || parked == null)
+                resumeWaiting();
+            else
+                resume();
+        }
+
+        // volta a ler: reenvia o pedido recusado e trata os frames que ficaram no buffer
+        private void resume() {
+            if (closed.get() || !readPaused)
+                return;
+            if (parked != null) {
+                Message request = parked;
+                parked = null;
+                readPaused = false;
+                dispatch(request);
+                if (readPaused)
+                    return; // recusado outra vez ou no limite de pedidos
+            } else if (inFlight.get() >= Constants.MAX_PIPELINED_REQUESTS) {
+                return;
+            }
+            readPaused = false;
+            updateInterest();
+            try {
+                readBuffer.flip();
+                processFrames();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // OP_READ se a leitura nao estiver parada, OP_WRITE se houver escrita pedida (no loop)
+        private void updateInterest() {
+            if (key.isValid())
+                key.interestOps((readPaused ? 0 : SelectionKey.OP_READ)
+                        | (writeRequested.get() ? SelectionKey.OP_WRITE : 0));
+        }
+
+        // chamado quando ha mensagens na fila de saida, ativa o OP_WRITE uma vez
+        void requestWrite() {
+            if (closed.get() || codec == null)
+                return;
+            if (writeRequested.compareAndSet(false, true)) {
+                loop.execute(this::updateInterest);
+            }
+        }
+
+        void closeAsync() {
+            loop.execute(this::close);
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            if (key != null)
+                key.cancel();
+            closeQuietly(channel);
+            server.removeClient(handler);
+        }
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + payload.length);
+        frame.putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignora
+        }
+    }
+}
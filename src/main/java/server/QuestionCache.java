@@ -0,0 +1,126 @@
+package server;
+
+import common.Metrics;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Cache limitada (LRU) das perguntas, por codigo de acesso e por id
+    As perguntas sao imutaveis, uma escrita que mexa na tabela questions
+    (local ou recebida por multicast) invalida a cache.
+    A geracao evita que uma leitura feita antes da invalidacao volte a
+    colocar na cache uma versao antiga da pergunta.
+ */
+public class QuestionCache {
+    private final int capacity;
+    private final Metrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, String> codeById = new HashMap<>();
+    private final LinkedHashMap<String, QuestionStore.Question> byCode;
+    private long generation = 0;
+
+    public QuestionCache(int capacity, Metrics metrics) {
+        this.capacity = Math.max(1, capacity);
+        this.metrics = metrics;
+        this.byCode = new LinkedHashMap<>(16, 0.75f, true) { // ordem de acesso (LRU)
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QuestionStore.Question> eldest) {
+                if (size() <= QuestionCache.this.capacity)
+                    return false;
+                codeById.remove(eldest.getValue().id);
+                metrics.counter("cache.despejos").increment();
+                return true;
+            }
+        };
+        metrics.gauge("cache.entradas", this::size);
+    }
+
+    // pergunta pelo codigo de acesso, le da base de dados se nao estiver na cache
+    public QuestionStore.Question findByAccessCode(DatabaseManager.Lease db, String accessCode) throws SQLException {
+        long gen;
+        lock.lock();
+        try {
+            QuestionStore.Question q = byCode.get(accessCode);
+            if (q != null) {
+                metrics.counter("cache.acertos").increment();
+                return q;
+            }
+            gen = generation;
+        } finally {
+            lock.unlock();
+        }
+        metrics.counter("cache.falhas").increment();
+        QuestionStore.Question q = QuestionStore.findByAccessCode(db, accessCode);
+        put(q, gen);
+        return q;
+    }
+
+    public QuestionStore.Question findById(DatabaseManager.Lease db, int id) throws SQLException {
+        long gen;
+        lock.lock();
+        try {
+            String code = codeById.get(id);
+            QuestionStore.Question q = code != null ? byCode.get(code) : null;
+            if (q != null) {
+                metrics.counter("cache.acertos").increment();
+                return q;
+            }
+            gen = generation;
+        } finally {
+            lock.unlock();
+        }
+        metrics.counter("cache.falhas").increment();
+        QuestionStore.Question q = QuestionStore.findById(db, id);
+        put(q, gen);
+        return q;
+    }
+
+    // so guarda se nao houve invalidacao desde que a leitura comecou
+    private void put(QuestionStore.Question q, long gen) {
+        if (q == null)
+            return; // codigos inexistentes nao ficam na cache
+        lock.lock();
+        try {
+            if (gen != generation)
+                return;
+            byCode.put(q.accessCode, q);
+            codeById.put(q.id, q.accessCode);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // chamado depois de cada escrita aplicada na base de dados
+    // as escritas nas perguntas sao raras (criar, editar, apagar, mudar o criador),
+    // as respostas nunca invalidam a cache
+    public void onWrite(Update update) {
+        if (QuestionStore.TABLE.equals(update.getTable()))
+            invalidateAll();
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            generation++;
+            if (!byCode.isEmpty())
+                metrics.counter("cache.invalidacoes").increment();
+            byCode.clear();
+            codeById.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long size() {
+        lock.lock();
+        try {
+            return byCode.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
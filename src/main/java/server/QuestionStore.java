@@ -0,0 +1,110 @@
+package server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Acesso a tabela questions */
+public final class QuestionStore {
+    static final String FIND_BY_CODE = "SELECT * FROM questions WHERE access_code = ?";
+    static final String FIND_BY_ID = "SELECT * FROM questions WHERE id = ?";
+    private static final String LIST_ALL = "SELECT * FROM questions";
+    static final String LIST_ACTIVE = "SELECT * FROM questions WHERE start_time <= ? AND end_time >= ?";
+    static final String LIST_EXPIRED = "SELECT * FROM questions WHERE end_time < ?";
+    static final String LIST_FUTURE = "SELECT * FROM questions WHERE start_time > ?";
+    static final String TABLE = "questions";
+    private static final String[] INSERT_COLUMNS =
+            { "prompt", "options", "correct_option", "start_time", "end_time", "access_code", "creator_email" };
+    private static final String[] UPDATE_COLUMNS = { "prompt", "options", "correct_option", "start_time", "end_time" };
+    private static final String[] BY_ID = { "id" };
+    private static final String[] CREATOR = { "creator_email" };
+
+    private QuestionStore() {
+    }
+
+    // linha da tabela questions
+    public static class Question {
+        public final int id;
+        public final String prompt;
+        public final String options;
+        public final int correctOption;
+        public final long startTime;
+        public final long endTime;
+        public final String accessCode;
+        public final String creatorEmail;
+
+        Question(ResultSet rs) throws SQLException {
+            this.id = rs.getInt("id");
+            this.prompt = rs.getString("prompt");
+            this.options = rs.getString("options");
+            this.correctOption = rs.getInt("correct_option");
+            this.startTime = rs.getLong("start_time");
+            this.endTime = rs.getLong("end_time");
+            this.accessCode = rs.getString("access_code");
+            this.creatorEmail = rs.getString("creator_email");
+        }
+    }
+
+    // null se o codigo nao existir
+    public static Question findByAccessCode(DatabaseManager.Lease db, String accessCode) throws SQLException {
+        PreparedStatement ps = db.prepare(FIND_BY_CODE);
+        ps.setString(1, accessCode);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? new Question(rs) : null;
+        }
+    }
+
+    public static Question findById(DatabaseManager.Lease db, int id) throws SQLException {
+        PreparedStatement ps = db.prepare(FIND_BY_ID);
+        ps.setInt(1, id);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? new Question(rs) : null;
+        }
+    }
+
+    // filtro ACTIVE, EXPIRED, FUTURE ou qualquer outro valor para todas; now em segundos
+    public static List<Question> list(DatabaseManager.Lease db, String filter, long now) throws SQLException {
+        PreparedStatement ps;
+        if ("ACTIVE".equalsIgnoreCase(filter)) {
+            ps = db.prepare(LIST_ACTIVE);
+            ps.setLong(1, now);
+            ps.setLong(2, now);
+        } else if ("EXPIRED".equalsIgnoreCase(filter)) {
+            ps = db.prepare(LIST_EXPIRED);
+            ps.setLong(1, now);
+        } else if ("FUTURE".equalsIgnoreCase(filter)) {
+            ps = db.prepare(LIST_FUTURE);
+            ps.setLong(1, now);
+        } else {
+            ps = db.prepare(LIST_ALL);
+        }
+        List<Question> questions = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                questions.add(new Question(rs));
+            }
+        }
+        return questions;
+    }
+
+    public static Update insert(String prompt, String options, int correctOption, long startTime, long endTime,
+            String accessCode, String creatorEmail) {
+        return Update.insertGenerated(TABLE, "id", INSERT_COLUMNS, prompt, options, correctOption, startTime, endTime, accessCode,
+                creatorEmail);
+    }
+
+    public static Update update(int id, String prompt, String options, int correctOption, long startTime,
+            long endTime) {
+        return Update.update(TABLE, UPDATE_COLUMNS, BY_ID, prompt, options, correctOption, startTime, endTime, id);
+    }
+
+    public static Update delete(int id) {
+        return Update.delete(TABLE, BY_ID, id);
+    }
+
+    public static Update changeCreator(String oldEmail, String newEmail) {
+        return Update.update(TABLE, CREATOR, CREATOR, newEmail, oldEmail);
+    }
+}
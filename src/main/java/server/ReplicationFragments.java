@@ -0,0 +1,141 @@
+package server;
+
+import common.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Escritas maiores que um datagrama sao enviadas em fragmentos
+    Formato: "UPDF" <versao> <indice> <total> <bytes da escrita codificada>
+    O backup junta os fragmentos de cada versao por qualquer ordem; uma versao
+    incompleta e descartada ao fim de algum tempo e volta a ser pedida ao primario
+    por RETRANSMIT como qualquer outra lacuna.
+ */
+class ReplicationFragments {
+    private static final byte[] MAGIC = { 'U', 'P', 'D', 'F' };
+    static final int HEADER_SIZE = MAGIC.length + 4 + 2 + 2;
+    private static final int MAX_PARTIAL = 64; // versoes a meio de chegar
+
+    private final long expireNanos;
+    private final Metrics metrics;
+    private final Map<Integer, Partial> partials = new LinkedHashMap<>(); // por ordem de chegada
+    // versoes ja entregues, um fragmento duplicado que chegue depois nao abre outra
+    private final Map<Integer, Boolean> completed = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > MAX_PARTIAL * 4;
+        }
+    };
+
+    // so a thread do multicast usa o assembler, nao precisa de lock
+    ReplicationFragments(long expireMillis, Metrics metrics) {
+        this.expireNanos = expireMillis * 1_000_000;
+        this.metrics = metrics;
+        metrics.gauge("replicacao.fragmentos_pendentes", partials::size);
+    }
+
+    // parte a escrita em datagramas de ate maxDatagram bytes
+    static List<byte[]> split(int version, byte[] change, int maxDatagram) {
+        int chunk = maxDatagram - HEADER_SIZE;
+        int count = (change.length + chunk - 1) / chunk;
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunk;
+            int size = Math.min(chunk, change.length - offset);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+            buffer.put(MAGIC).putInt(version).putShort((short) i).putShort((short) count);
+            buffer.put(change, offset, size);
+            fragments.add(buffer.array());
+        }
+        return fragments;
+    }
+
+    // maior escrita que cabe em fragmentos (o total tem 16 bits)
+    static int maxFragmented(int maxDatagram) {
+        return (maxDatagram - HEADER_SIZE) * 0xFFFF;
+    }
+
+    static boolean isFragment(byte[] data, int length) {
+        return length >= HEADER_SIZE && data[0] == MAGIC[0] && data[1] == MAGIC[1]
+                && data[2] == MAGIC[2] && data[3] == MAGIC[3];
+    }
+
+    static int versionOf(byte[] data) {
+        return ByteBuffer.wrap(data).getInt(MAGIC.length);
+    }
+
+    // guarda o fragmento; devolve a escrita quando a versao fica completa, senao null
+    byte[] offer(byte[] data, int length) {
+        expire(System.nanoTime());
+        ByteBuffer in = ByteBuffer.wrap(data, 0, length);
+        in.position(MAGIC.length);
+        int version = in.getInt();
+        int index = in.getShort() & 0xFFFF;
+        int count = in.getShort() & 0xFFFF;
+        if (count == 0 || index >= count)
+            return null; // fragmento invalido
+
+        Partial partial = partials.get(version);
+        if (partial == null) {
+            if (completed.containsKey(version))
+                return null;
+            if (partials.size() >= MAX_PARTIAL) { // descarta a mais antiga
+                Iterator<Partial> it = partials.values().iterator();
+                it.next();
+                it.remove();
+                metrics.counter("replicacao.fragmentadas_descartadas").increment();
+            }
+            partial = new Partial(count);
+            partials.put(version, partial);
+        } else if (partial.parts.length != count) {
+            return null;
+        }
+        if (partial.parts[index] == null) { // duplicados sao ignorados
+            byte[] part = new byte[length - HEADER_SIZE];
+            System.arraycopy(data, HEADER_SIZE, part, 0, part.length);
+            partial.parts[index] = part;
+            partial.received++;
+            partial.size += part.length;
+        }
+        if (partial.received < count)
+            return null;
+
+        partials.remove(version);
+        completed.put(version, Boolean.TRUE);
+        byte[] change = new byte[partial.size];
+        int offset = 0;
+        for (byte[] part : partial.parts) {
+            System.arraycopy(part, 0, change, offset, part.length);
+            offset += part.length;
+        }
+        metrics.counter("replicacao.fragmentadas_recebidas").increment();
+        return change;
+    }
+
+    // descarta as versoes mais antigas que o tempo limite (a mais antiga esta a frente)
+    private void expire(long now) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().firstSeen <= expireNanos)
+                break;
+            it.remove();
+            metrics.counter("replicacao.fragmentadas_descartadas").increment();
+        }
+    }
+
+    private static final class Partial {
+        final byte[][] parts;
+        final long firstSeen = System.nanoTime();
+        int received;
+        int size;
+
+        Partial(int count) {
+            this.parts = new byte[count][];
+        }
+    }
+}
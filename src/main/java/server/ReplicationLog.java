@@ -0,0 +1,83 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+    Log de replicacao: tabela replication_log com a escrita codificada de cada versao (Update.encode)
+    Escrito pelo DatabaseManager na mesma transacao que a escrita,
+    lido pelo primario para enviar a um backup so as versoes que lhe faltam.
+    No socket cada entrada vai como <versao int> <tamanho int> <escrita>, o fim e a versao 0.
+ */
+public final class ReplicationLog {
+    static final String APPEND = "INSERT INTO replication_log (version, change) VALUES (?, ?)";
+    static final String TRUNCATE = "DELETE FROM replication_log WHERE version <= ?";
+    // MIN e MAX separados: juntos no mesmo SELECT o SQLite percorre o log todo
+    private static final String RANGE =
+            "SELECT (SELECT MIN(version) FROM replication_log), (SELECT MAX(version) FROM replication_log)";
+    static final String BETWEEN =
+            "SELECT version, change FROM replication_log WHERE version > ? AND version <= ? ORDER BY version";
+
+    private ReplicationLog() {
+    }
+
+    public interface EntryConsumer {
+        void accept(int version, byte[] change) throws IOException;
+    }
+
+    // true se o log tem todas as versoes depois de 'fromVersion' ate a ultima gravada
+    public static boolean covers(DatabaseManager.Lease db, int fromVersion, int currentVersion) throws SQLException {
+        if (fromVersion >= currentVersion)
+            return fromVersion == currentVersion; // backup a frente do primario: precisa de snapshot
+        try (ResultSet rs = db.prepare(RANGE).executeQuery()) {
+            if (!rs.next() || rs.getObject(1) == null)
+                return false; // log vazio (base de dados anterior ao log)
+            return rs.getInt(1) <= fromVersion + 1 && rs.getInt(2) >= currentVersion;
+        }
+    }
+
+    // percorre as entradas depois de 'fromVersion' ate 'toVersion' por ordem, devolve a ultima
+    public static int forEach(DatabaseManager.Lease db, int fromVersion, int toVersion, EntryConsumer consumer)
+            throws SQLException, IOException {
+        PreparedStatement ps = db.prepare(BETWEEN);
+        ps.setInt(1, fromVersion);
+        ps.setInt(2, toVersion);
+        int last = fromVersion;
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                last = rs.getInt(1);
+                consumer.accept(last, rs.getBytes(2));
+            }
+        }
+        return last;
+    }
+
+    public static void writeEntry(DataOutputStream out, int version, byte[] change) throws IOException {
+        out.writeInt(version);
+        out.writeInt(change.length);
+        out.write(change);
+    }
+
+    public static void endStream(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+    }
+
+    // le entradas ate ao fim do stream
+    public static void readStream(DataInputStream in, EntryConsumer consumer) throws IOException {
+        while (true) {
+            int version = in.readInt();
+            if (version == 0)
+                return;
+            int length = in.readInt();
+            if (length < 0 || length > common.Constants.REPLICATION_ENTRY_LIMIT)
+                throw new IOException("Entrada do log invalida: " + length);
+            byte[] data = new byte[length];
+            in.readFully(data);
+            consumer.accept(version, data);
+        }
+    }
+}
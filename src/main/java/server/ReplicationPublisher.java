@@ -0,0 +1,174 @@
+package server;
+
+import common.Metrics;
+import common.ThreadSupport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Envio das escritas do primario para o grupo multicast
+    O group commit so coloca a escrita numa fila sem locks e regressa; uma thread
+    propria com um socket que fica aberto junta versoes seguidas no mesmo datagrama
+    ate ao tamanho maximo (MTU).
+    Formato do lote: "UPDB" <primeira versao> <ultima versao> e por cada escrita
+    <tamanho> <escrita codificada (Update.encode)>. Uma escrita maior que o MTU vai em fragmentos
+    (ReplicationFragments); acima do limite nem e enviada e o backup vai busca-la
+    pela ligacao TCP de sincronizacao (RETRANSMIT) quando deteta a lacuna.
+ */
+class ReplicationPublisher {
+    private static final byte[] MAGIC = { 'U', 'P', 'D', 'B' };
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+
+    private final InetAddress group;
+    private final int port;
+    private final int maxDatagram;
+    private final int maxMulticast; // acima disto a escrita so segue por TCP
+    private final Metrics metrics;
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    private volatile Thread sender;
+
+    ReplicationPublisher(InetAddress group, int port, int maxDatagram, int maxMulticast, Metrics metrics) {
+        this.group = group;
+        this.port = port;
+        this.maxDatagram = Math.max(HEADER_SIZE + 64, maxDatagram);
+        this.maxMulticast = Math.min(maxMulticast, ReplicationFragments.maxFragmented(this.maxDatagram));
+        this.metrics = metrics;
+        metrics.gauge("replicacao.fila_envio", queued::get);
+    }
+
+    void start() {
+        sender = ThreadSupport.startBackground("replication-sender", this::run);
+    }
+
+    // chamado por ordem das versoes (thread do group commit), nao bloqueia
+    void publish(int version, byte[] change) {
+        queue.add(new Entry(version, change));
+        queued.incrementAndGet();
+        if (sleeping.compareAndSet(true, false))
+            LockSupport.unpark(sender);
+    }
+
+    private void run() {
+        try (MulticastSocket socket = new MulticastSocket()) {
+            // mesma interface em que os servidores se juntam ao grupo
+            NetworkInterface netIf = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+            if (netIf != null)
+                socket.setNetworkInterface(netIf);
+            ByteBuffer buffer = ByteBuffer.allocate(maxDatagram);
+            Entry carry = null; // escrita que ja nao coube no datagrama anterior
+
+            while (true) {
+                Entry first = carry != null ? carry : queue.poll();
+                carry = null;
+                if (first == null) {
+                    sleeping.set(true);
+                    if (queue.isEmpty())
+                        LockSupport.park(this);
+                    sleeping.set(false);
+                    continue;
+                }
+                if (HEADER_SIZE + 4 + first.change.length > maxDatagram) {
+                    sendLarge(socket, first);
+                    continue;
+                }
+                buffer.clear();
+                buffer.put(MAGIC).putInt(first.version).putInt(first.version);
+                int count = 0;
+                Entry entry = first;
+                while (entry != null) {
+                    if (count > 0 && (buffer.remaining() < 4 + entry.change.length
+                            || entry.version != first.version + count)) {
+                        carry = entry; // vai no proximo datagrama
+                        break;
+                    }
+                    buffer.putInt(entry.change.length).put(entry.change);
+                    count++;
+                    entry = queue.poll();
+                }
+                queued.addAndGet(-count);
+                buffer.putInt(MAGIC.length + 4, first.version + count - 1);
+                if (send(socket, buffer.array(), buffer.position()))
+                    metrics.counter("replicacao.enviadas").add(count);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // escrita que nao cabe num datagrama: fragmentos ou, acima do limite, so por TCP
+    private void sendLarge(MulticastSocket socket, Entry entry) {
+        queued.decrementAndGet();
+        if (entry.change.length > maxMulticast) {
+            metrics.counter("replicacao.so_tcp").increment();
+            return;
+        }
+        boolean sent = true;
+        for (byte[] fragment : ReplicationFragments.split(entry.version, entry.change, maxDatagram))
+            sent &= send(socket, fragment, fragment.length);
+        if (sent) {
+            metrics.counter("replicacao.enviadas").increment();
+            metrics.counter("replicacao.fragmentadas").increment();
+        }
+    }
+
+    private boolean send(MulticastSocket socket, byte[] data, int length) {
+        try {
+            socket.send(new DatagramPacket(data, length, group, port));
+            metrics.counter("replicacao.datagramas").increment();
+            metrics.counter("replicacao.bytes").add(length);
+            return true;
+        } catch (IOException e) {
+            // o backup deteta a lacuna e pede retransmissao
+            metrics.counter("replicacao.erros_envio").increment();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    static boolean isBatch(byte[] data, int length) {
+        return length >= HEADER_SIZE && data[0] == MAGIC[0] && data[1] == MAGIC[1]
+                && data[2] == MAGIC[2] && data[3] == MAGIC[3];
+    }
+
+    // le um lote para changes e devolve a versao da primeira escrita
+    static int decode(byte[] data, int length, List<byte[]> changes) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data, 0, length);
+        in.position(MAGIC.length);
+        int first = in.getInt();
+        int last = in.getInt();
+        for (int v = first; v <= last; v++) {
+            if (in.remaining() < 4)
+                throw new IOException("Lote de replicacao incompleto");
+            int size = in.getInt();
+            if (size < 0 || size > in.remaining())
+                throw new IOException("Lote de replicacao invalido");
+            byte[] change = new byte[size];
+            in.get(change);
+            changes.add(change);
+        }
+        return first;
+    }
+
+    private static final class Entry {
+        final int version;
+        final byte[] change;
+
+        Entry(int version, byte[] change) {
+            this.version = version;
+            this.change = change;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package server;
+
+import common.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+    Lado do backup da replicacao por multicast
+    As escritas sao aplicadas pela ordem das versoes. Quando falta uma versao
+    (datagrama perdido) as seguintes ficam em espera e o backup pede as que faltam
+    ao primario pela porta de sincronizacao (RETRANSMIT <de> <ate>).
+    So faz a sincronizacao completa se o primario ja nao tiver essas versoes.
+ */
+class ReplicationReceiver {
+    interface Applier {
+        // aplica escritas com versoes seguidas a partir da versao local + 1
+        void apply(List<Update> updates) throws SQLException;
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final DatabaseManager dbManager;
+    private final Applier applier;
+    private final Supplier<InetSocketAddress> primarySync; // porta de sincronizacao do primario
+    private final Runnable fullResync;
+    private final Executor executor;
+    private final Metrics metrics;
+    private final int maxPending;
+    private final long lagGraceNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Integer, Update> pending = new TreeMap<>(); // escritas fora de ordem
+    private final AtomicBoolean recovering = new AtomicBoolean(false);
+    private final AtomicLong maxRecoveryMillis = new AtomicLong();
+    private long gapStart = 0; // nanoTime em que a lacuna foi detetada, 0 sem lacuna
+    private int primaryVersion = 0; // ultima versao anunciada pelo primario no heartbeat
+    // atraso visto no heartbeat: o primario anuncia a versao do commit antes de o publisher
+    // enviar as escritas, so conta como lacuna se durar mais que a tolerancia
+    private long behindSince = 0; // nanoTime do primeiro heartbeat a frente, 0 se em dia
+    private int behindVersion = 0; // versao anunciada nesse heartbeat
+
+    ReplicationReceiver(DatabaseManager dbManager, Applier applier, Supplier<InetSocketAddress> primarySync,
+            Runnable fullResync, Executor executor, Metrics metrics, int maxPending, int lagGraceMillis) {
+        this.dbManager = dbManager;
+        this.applier = applier;
+        this.primarySync = primarySync;
+        this.fullResync = fullResync;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.maxPending = maxPending;
+        this.lagGraceNanos = lagGraceMillis * 1_000_000L;
+        metrics.gauge("replicacao.pendentes", this::pendingSize);
+        metrics.gauge("replicacao.recuperacao_max_ms", maxRecoveryMillis::get);
+    }
+
+    // escrita recebida por multicast
+    void onUpdate(int version, Update update) throws SQLException {
+        List<Update> updates = new ArrayList<>();
+        updates.add(update);
+        onUpdates(version, updates);
+    }
+
+    // lote de escritas com versoes seguidas (first, first + 1, ...)
+    void onUpdates(int first, List<Update> updates) throws SQLException {
+        boolean gap = false;
+        lock.lock();
+        try {
+            int local = dbManager.getDbVersion();
+            int skip = local + 1 - first; // repetidas ou ja recebidas por retransmissao
+            if (skip >= updates.size())
+                return;
+            if (skip >= 0) {
+                apply(new ArrayList<>(updates.subList(skip, updates.size())));
+                return;
+            }
+            if (gapStart == 0) {
+                gapStart = System.nanoTime();
+                metrics.counter("replicacao.lacunas").increment();
+                System.err.println("Atualizacoes perdidas (Local: " + local + ", Remoto: " + first
+                        + "), a pedir retransmissao.");
+            }
+            for (int i = 0; i < updates.size() && pending.size() < maxPending; i++) {
+                pending.put(first + i, updates.get(i));
+            } // com o buffer cheio a escrita volta a ser pedida na retransmissao
+            gap = true;
+        } finally {
+            lock.unlock();
+        }
+        if (gap)
+            requestRetransmit();
+    }
+
+    // versao do primario no heartbeat: revela escritas perdidas no fim do fluxo
+    // (ou enviadas so por TCP) quando nao chega nenhuma escrita seguinte.
+    // So abre a lacuna se o backup continuar sem a versao anunciada depois da tolerancia,
+    // as escritas ainda a caminho pelo multicast chegam antes disso
+    void onPrimaryVersion(int version) {
+        lock.lock();
+        try {
+            int local = dbManager.getDbVersion();
+            if (version <= local) {
+                behindSince = 0;
+                return;
+            }
+            long now = System.nanoTime();
+            if (gapStart == 0 && (behindSince == 0 || local >= behindVersion)) {
+                behindSince = now; // atraso novo ou o anterior ja foi recuperado
+                behindVersion = version;
+                return;
+            }
+            if (gapStart == 0 && now - behindSince < lagGraceNanos)
+                return;
+        } finally {
+            lock.unlock();
+        }
+        openGap(version);
+    }
+
+    // o backup sabe que lhe faltam versoes ate 'version', pede-as ao primario
+    private void openGap(int version) {
+        lock.lock();
+        try {
+            int local = dbManager.getDbVersion();
+            if (version <= local)
+                return;
+            primaryVersion = Math.max(primaryVersion, version);
+            behindSince = 0;
+            if (gapStart == 0) {
+                gapStart = System.nanoTime();
+                metrics.counter("replicacao.lacunas").increment();
+                System.err.println("Backup atrasado (Local: " + local + ", Primario: " + version
+                        + "), a pedir retransmissao.");
+            }
+        } finally {
+            lock.unlock();
+        }
+        requestRetransmit();
+    }
+
+    // o primario mudou (failover): as escritas em espera eram do anterior e a versao
+    // anunciada passa a ser a do novo; se este backup estiver atrasado pede-lhe o resto
+    void onPrimaryChanged(int version) {
+        lock.lock();
+        try {
+            pending.clear();
+            primaryVersion = version;
+            gapStart = 0;
+            behindSince = 0;
+        } finally {
+            lock.unlock();
+        }
+        openGap(version); // o novo primario nao tem escritas a caminho para este backup
+    }
+
+    // copia completa do novo primario (este servidor tem escritas que o novo primario nao tem)
+    void resync(Runnable sync) {
+        lock.lock();
+        try {
+            metrics.counter("replicacao.resyncs").increment();
+            pending.clear();
+            sync.run();
+            if (dbManager.getDbVersion() >= primaryVersion)
+                gapStart = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // aplica o lote e as escritas em espera que ficaram seguidas (com o lock)
+    private void apply(List<Update> batch) throws SQLException {
+        int next = dbManager.getDbVersion() + batch.size() + 1;
+        while (!pending.isEmpty() && pending.firstKey() <= next) {
+            Map.Entry<Integer, Update> e = pending.pollFirstEntry();
+            if (e.getKey() == next) {
+                batch.add(e.getValue());
+                next++;
+            }
+        }
+        applier.apply(batch);
+        if (pending.isEmpty() && gapStart != 0 && dbManager.getDbVersion() >= primaryVersion) {
+            long millis = (System.nanoTime() - gapStart) / 1_000_000;
+            metrics.counter("replicacao.recuperacao_total_ms").add(millis);
+            maxRecoveryMillis.accumulateAndGet(millis, Math::max);
+            gapStart = 0;
+            System.out.println("Lacuna recuperada em " + millis + " ms (versao " + dbManager.getDbVersion() + ")");
+        }
+    }
+
+    private void requestRetransmit() {
+        if (recovering.compareAndSet(false, true))
+            executor.execute(this::recover);
+    }
+
+    private void recover() {
+        try {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                int from;
+                int to;
+                lock.lock();
+                try {
+                    if (gapStart == 0)
+                        return;
+                    from = dbManager.getDbVersion() + 1;
+                    to = pending.isEmpty() ? Math.max(from, primaryVersion) : pending.firstKey() - 1;
+                } finally {
+                    lock.unlock();
+                }
+                if (retransmit(from, to))
+                    continue; // verifica se ainda ha lacunas
+                break; // o primario ja nao tem as versoes
+            }
+            lock.lock();
+            try {
+                if (gapStart != 0) { // lacuna sem recuperacao: copia completa
+                    metrics.counter("replicacao.resyncs").increment();
+                    fullResync.run();
+                    pending.headMap(dbManager.getDbVersion(), true).clear();
+                    apply(new ArrayList<>());
+                    if (!pending.isEmpty())
+                        System.err.println("Ainda faltam versoes depois da sincronizacao completa");
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            recovering.set(false);
+            lock.lock();
+            boolean gap;
+            try {
+                gap = gapStart != 0 && (!pending.isEmpty() || dbManager.getDbVersion() < primaryVersion);
+            } finally {
+                lock.unlock();
+            }
+            if (gap)
+                requestRetransmit();
+        }
+    }
+
+    // pede as versoes ao primario; false se o primario respondeu GONE
+    private boolean retransmit(int from, int to) throws IOException, SQLException {
+        InetSocketAddress primary = primarySync.get();
+        if (primary == null)
+            throw new IOException("Servidor principal desconhecido");
+        metrics.counter("replicacao.retransmissoes").increment();
+        List<Update> received = new ArrayList<>();
+        int[] first = { 0 };
+        try (Socket socket = new Socket(primary.getAddress(), primary.getPort());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.writeUTF("RETRANSMIT " + from + " " + to);
+            out.flush();
+            if (!"LOG".equals(in.readUTF()))
+                return false;
+            ReplicationLog.readStream(in, (version, change) -> {
+                if (received.isEmpty())
+                    first[0] = version;
+                received.add(Update.decode(change));
+            });
+        }
+        metrics.counter("replicacao.versoes_recuperadas").add(received.size());
+        lock.lock();
+        try {
+            // so aplica a partir da versao local + 1 (pode ter chegado alguma entretanto)
+            int skip = dbManager.getDbVersion() + 1 - first[0];
+            if (skip < 0)
+                return true; // resposta nao encaixa, tenta de novo
+            List<Update> batch = new ArrayList<>();
+            for (int i = skip; i < received.size(); i++)
+                batch.add(received.get(i));
+            apply(batch);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private long pendingSize() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
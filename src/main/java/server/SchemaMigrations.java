@@ -0,0 +1,103 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+    Migracoes versionadas do esquema, aplicadas no connect() de cada servidor
+    A versao do esquema fica na tabela config (chave 'schema').
+    As migracoes so alteram a estrutura (DDL) e nao contam como versao de dados,
+    por isso nao passam pelo multicast: os backups recebem o ficheiro do primario
+    e aplicam as migracoes que faltarem com o mesmo codigo, ficando iguais.
+    Novas migracoes acrescentam-se no fim, nunca se alteram as ja publicadas.
+ */
+final class SchemaMigrations {
+    static final String SCHEMA_KEY = "schema";
+
+    private static final Migration[] MIGRATIONS = {
+            new Migration(1, "indice do historico de respostas por aluno",
+                    "CREATE INDEX IF NOT EXISTS idx_answers_student_time ON answers(student_email, timestamp)"),
+            new Migration(2, "indices dos tempos das perguntas (listagem e timers)",
+                    "CREATE INDEX IF NOT EXISTS idx_questions_start ON questions(start_time)",
+                    "CREATE INDEX IF NOT EXISTS idx_questions_end ON questions(end_time)"),
+            new Migration(3, "indice do criador das perguntas (edicao de perfil)",
+                    "CREATE INDEX IF NOT EXISTS idx_questions_creator ON questions(creator_email)"),
+            new Migration(4, "log de replicacao (catch-up dos backups)",
+                    "CREATE TABLE IF NOT EXISTS replication_log (version INTEGER PRIMARY KEY, sql TEXT NOT NULL)"),
+            // as entradas antigas (SQL literal) nao se convertem: o log recomeca vazio e um
+            // backup atrasado recebe uma copia da base de dados em vez do catch-up por log
+            new Migration(5, "log de replicacao com escritas estruturadas",
+                    "DROP TABLE IF EXISTS replication_log",
+                    "CREATE TABLE replication_log (version INTEGER PRIMARY KEY, change BLOB NOT NULL)"),
+    };
+
+    private SchemaMigrations() {
+    }
+
+    static int latestVersion() {
+        return MIGRATIONS[MIGRATIONS.length - 1].version;
+    }
+
+    // aplica as migracoes em falta, cada uma na sua transacao; devolve a versao final
+    static int migrate(Connection conn) throws SQLException {
+        int current = currentVersion(conn);
+        if (current > latestVersion()) {
+            System.err.println("Aviso: esquema da base de dados (" + current
+                    + ") mais recente que o deste servidor (" + latestVersion() + ")");
+            return current;
+        }
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= current)
+                continue;
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : migration.statements) {
+                    stmt.execute(sql);
+                }
+                setVersion(conn, migration.version);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            current = migration.version;
+            System.out.println("Migracao de esquema " + current + " aplicada: " + migration.description);
+        }
+        return current;
+    }
+
+    static int currentVersion(Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT value FROM config WHERE key = ?")) {
+            ps.setString(1, SCHEMA_KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? Integer.parseInt(rs.getString("value")) : 0;
+            }
+        }
+    }
+
+    private static void setVersion(Connection conn, int version) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT OR REPLACE INTO config (key, value) VALUES (?, ?)")) {
+            ps.setString(1, SCHEMA_KEY);
+            ps.setString(2, String.valueOf(version));
+            ps.executeUpdate();
+        }
+    }
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+}
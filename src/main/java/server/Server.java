@@ -1,41 +1,173 @@
 package server;
 
 import common.Constants;
+import common.Message;
+import common.Metrics;
+import common.ThreadSupport;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
     private DatabaseManager dbManager;
     private int tcpPort;
     private int syncPort;
-    private boolean isPrimary = false;
+    private volatile boolean isPrimary = false;
+    private volatile String primaryClient; // ip:porta TCP do primario (backup), enviado com NOT_PRIMARY
     private AtomicBoolean running = new AtomicBoolean(true);
     private String dbPath;
+    private String transportMode; // "blocking" (thread por cliente) ou "nio" (selector + pool de workers)
 
-    // Lista para guardar os clientes ativos
-    private final java.util.List<ClientHandler> activeClients = java.util.Collections
-            .synchronizedList(new java.util.ArrayList<>());
+    // Lista para guardar os clientes ativos (copy-on-write: o broadcast itera sem bloquear a lista)
+    private final List<ClientHandler> activeClients = new CopyOnWriteArrayList<>();
+
+    // notificacoes por distribuir, o broadcast apenas coloca aqui e regressa
+    private final BlockingQueue<Notification> notifications = new LinkedBlockingQueue<>();
+    private final Metrics metrics = new Metrics("servidor");
 
     private final Set<Integer> activeQuestionIds = Collections.synchronizedSet(new HashSet<>());
 
+    // executores para as tarefas por ligacao (virtual threads com -Dpd.threads=virtual)
+    private final ExecutorService clientExecutor = ThreadSupport.newTaskExecutor("client");
+    private final ExecutorService syncExecutor = ThreadSupport.newTaskExecutor("sync");
+    private final ExecutorService requestExecutor = ThreadSupport.newBoundedExecutor("request",
+            Constants.REQUEST_THREADS, Constants.REQUEST_QUEUE);
+    // unica thread que escreve na base de dados, junta escritas concorrentes num commit
+    private final GroupCommitWriter writer;
+    private final QuestionCache questionCache;
+    private final LiveAnswers liveAnswers; // respostas das perguntas ativas em memoria
+    // replicacao: ultimas escritas publicadas (primario) e rececao por ordem com retransmissao (backup)
+    private final UpdateRing recentUpdates = new UpdateRing(Constants.REPLICATION_RING_SIZE);
+    private final ReplicationReceiver receiver;
+    private final AtomicLong maxApplyMicros = new AtomicLong(); // maior lote aplicado no backup
+    private final AtomicLong maxReadWaitMicros = new AtomicLong(); // maior espera de uma leitura pela versao
+    // carga enviada nos heartbeats: pedidos a espera ou em curso e total recebido (para a taxa)
+    private final AtomicInteger queuedRequests = new AtomicInteger();
+    private final LongAdder receivedRequests = new LongAdder();
+    private final ReplicationPublisher publisher; // envio assincrono das escritas para o grupo
+    // junta os fragmentos das escritas grandes (so usado pela thread do multicast)
+    private final ReplicationFragments fragments;
+    private volatile InetSocketAddress primarySync; // porta de sincronizacao do primario (backup)
+    private final SnapshotTransfer snapshots; // copias completas (gerar e enviar ou receber)
+
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.out.println("Uso: java server.Server <db_path> <tcp_port> <sync_port>");
+            System.out.println("Uso: java server.Server <db_path> <tcp_port> <sync_port> [blocking|nio]");
             return;
         }
-        new Server(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2])).start();
+        String transport = args.length > 3 ? args[3] : "blocking";
+        if (!transport.equals("blocking") && !transport.equals("nio")) {
+            System.out.println("Modo de transporte invalido: " + transport + " (usar blocking ou nio)");
+            return;
+        }
+        new Server(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), transport).start();
     }
 
     public Server(String dbPath, int tcpPort, int syncPort) {
+        this(dbPath, tcpPort, syncPort, "blocking");
+    }
+
+    public Server(String dbPath, int tcpPort, int syncPort, String transportMode) {
         this.dbPath = dbPath;
         this.tcpPort = tcpPort;
         this.syncPort = syncPort;
-        this.dbManager = new DatabaseManager(dbPath);
+        this.transportMode = transportMode;
+        this.dbManager = new DatabaseManager(dbPath, metrics);
+        this.questionCache = new QuestionCache(Constants.QUESTION_CACHE_SIZE, metrics);
+        this.liveAnswers = new LiveAnswers(dbManager, metrics);
+        this.receiver = new ReplicationReceiver(dbManager, this::applyReplicated, () -> primarySync,
+                this::resyncFromPrimary, syncExecutor, metrics, Constants.REPLICATION_MAX_PENDING,
+                Constants.REPLICATION_LAG_GRACE);
+        try {
+            this.publisher = new ReplicationPublisher(InetAddress.getByName(Constants.MULTICAST_GROUP),
+                    Constants.MULTICAST_PORT, Constants.REPLICATION_DATAGRAM_SIZE,
+                    Constants.REPLICATION_MULTICAST_LIMIT, metrics);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        this.snapshots = new SnapshotTransfer(dbManager, metrics);
+        this.fragments = new ReplicationFragments(Constants.REPLICATION_FRAGMENT_TIMEOUT, metrics);
+        // os backups recebem cada escrita estruturada (com as chaves geradas), pela ordem das versoes
+        this.writer = new GroupCommitWriter(dbManager, this::onCommitted,
+                Constants.GROUP_COMMIT_WINDOW_US, Constants.GROUP_COMMIT_MAX_BATCH, Constants.GROUP_COMMIT_TIMEOUT,
+                metrics);
+
+        metrics.gauge("clientes", activeClients::size);
+        metrics.gauge("saida.fila_total", () -> {
+            long total = 0;
+            for (ClientHandler client : activeClients)
+                total += client.outboundDepth();
+            return total;
+        });
+        metrics.gauge("saida.fila_max", () -> {
+            long max = 0;
+            for (ClientHandler client : activeClients)
+                max = Math.max(max, client.outboundDepth());
+            return max;
+        });
+        metrics.gauge("notificacoes.pendentes", notifications::size);
+        metrics.gauge("replicacao.aplicar_max_us", maxApplyMicros::get);
+        metrics.gauge("leituras.espera_max_us", maxReadWaitMicros::get);
+        metrics.gauge("pedidos.em_curso", queuedRequests::get);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public QuestionCache getQuestionCache() {
+        return questionCache;
+    }
+
+    public LiveAnswers getLiveAnswers() {
+        return liveAnswers;
+    }
+
+    // um backup so serve leituras, as escritas ficam todas no primario
+    public boolean isPrimary() {
+        return isPrimary;
+    }
+
+    public String getPrimaryClient() {
+        return primaryClient;
+    }
+
+    // backup: leitura de um cliente que ja escreveu a versao 'version' no primario
+    // espera pela replicacao ate READ_VERSION_WAIT; false se continuar atrasado
+    boolean awaitVersion(int version) {
+        long start = System.nanoTime();
+        boolean reached;
+        try {
+            reached = dbManager.awaitVersion(version, Constants.READ_VERSION_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reached = false;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        metrics.counter("leituras.esperas").increment();
+        metrics.counter("leituras.espera_total_us").add(micros);
+        maxReadWaitMicros.accumulateAndGet(micros, Math::max);
+        if (!reached)
+            metrics.counter("leituras.redirecionadas").increment();
+        return reached;
     }
 
     public void start() {
@@ -56,14 +188,17 @@ public class Server {
                 // avisa o utilizador
                 System.out.println("Encontrado servidor principal em " + ip + ":" + parts[2]);
                 isPrimary = false;
+                primaryClient = ip + ":" + parts[2];
+                primarySync = new InetSocketAddress(ip, syncPort);
                 syncDatabase(ip, syncPort); // copia a base de dados do servidor principal
             }
 
             long now = System.currentTimeMillis() / 1000;
             try {
-                for (DatabaseManager.QuestionTimerData q : dbManager.getAllQuestionTimers()) {
+                for (DatabaseManager.QuestionTimerData q : dbManager.getQuestionTimers(now, now)) {
                     if (q.startTime <= now && q.endTime > now) {
                         activeQuestionIds.add(q.id); // Marca como ativa silenciosamente
+                        liveAnswers.activate(q.id);
                     }
                 }
             } catch (Exception e) {
@@ -71,11 +206,17 @@ public class Server {
             }
 
             // inicia threads
-            new Thread(this::checkTimers).start();
-            new Thread(this::sendHeartbeats).start();
-            new Thread(this::listenMulticast).start();
-            new Thread(this::listenSync).start();
-            new Thread(this::listenClients).start();
+            publisher.start();
+            writer.start();
+            ThreadSupport.startBackground("timers", this::checkTimers);
+            ThreadSupport.startBackground("heartbeats", this::sendHeartbeats);
+            ThreadSupport.startBackground("primary-watch", this::watchPrimary);
+            ThreadSupport.startBackground("multicast", this::listenMulticast);
+            ThreadSupport.startBackground("sync-listener", this::listenSync);
+            ThreadSupport.startBackground("client-listener", this::listenClients);
+            ThreadSupport.startBackground("notification-fanout", this::fanoutNotifications);
+            if (Constants.METRICS_REPORT_INTERVAL > 0)
+                ThreadSupport.startBackground("metrics", this::reportMetrics);
 
             // mantem thread principal a correr
             while (running.get()) {
@@ -112,56 +253,229 @@ public class Server {
     }
 
     // funcao auxiliar para sincronizar a base de dados
+    // pede ao primario so as versoes em falta (CATCHUP <versao>); se o log ja nao as tiver
+    // recebe a copia completa e depois o que foi escrito durante a transferencia
     private void syncDatabase(String ip, int port) {
         System.out.println("A obter base de dados do servidor principal " + ip + ":" + port);
+        try {
+            if (catchUp(ip, port))
+                return;
+            receiveSnapshot(new InetSocketAddress(ip, port));
+            catchUp(ip, port);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // false se o primario ja nao tiver as versoes no log
+    private boolean catchUp(String ip, int port) throws IOException, SQLException {
         try (Socket socket = new Socket(ip, port);
-                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
 
-            out.writeUTF("SYNC_REQUEST"); // envia a pedido de sincronizacao ao servidor principal
+            int localVersion = dbManager.getDbVersion();
+            out.writeUTF("CATCHUP " + localVersion); // envia a versao local ao servidor principal
+            out.flush();
+
+            if (!"LOG".equals(in.readUTF()))
+                return false; // SNAPSHOT: e preciso a copia completa
+            if (!applyLog(in))
+                return false; // log incompleto
+            System.out.println("Base de dados atualizada pelo log: versao " + localVersion + " -> "
+                    + dbManager.getDbVersion());
+            return true;
+        }
+    }
 
-            long fileSize = in.readLong();
-            if (fileSize > 0) {
-                dbManager.close(); // fecha a base de dados para conseguir escrever
+    // entradas do log aplicadas em transacoes de ate 500 versoes; false se faltar alguma versao
+    private boolean applyLog(DataInputStream in) throws IOException, SQLException {
+        List<Update> pending = new java.util.ArrayList<>();
+        int[] expected = { dbManager.getDbVersion() + 1 };
+        boolean[] complete = { true };
+        ReplicationLog.readStream(in, (version, change) -> {
+            if (!complete[0])
+                return; // le ate ao fim para fechar a ligacao limpa
+            if (version != expected[0]) {
+                complete[0] = false;
+                return;
+            }
+            pending.add(Update.decode(change));
+            expected[0]++;
+            if (pending.size() == 500) {
+                try {
+                    applyReplicated(pending);
+                } catch (SQLException e) {
+                    throw new IOException(e);
+                }
+                pending.clear();
+            }
+        });
+        applyReplicated(pending);
+        return complete[0];
+    }
 
-                // copia base de dados principal para backup
-                File currentDb = new File(dbManager.getDbPath());
-                if (currentDb.exists()) {
-                    File backup = new File(dbManager.getDbPath() + ".bak");
-                    currentDb.renameTo(backup);
+    // escritas replicadas seguidas (versao local + 1 em diante)
+    private void applyReplicated(List<Update> updates) throws SQLException {
+        if (updates.isEmpty())
+            return;
+        long start = System.nanoTime();
+        dbManager.applyReplicated(updates);
+        long micros = (System.nanoTime() - start) / 1000;
+        metrics.counter("replicacao.aplicadas").add(updates.size());
+        metrics.counter("replicacao.aplicar_us").add(micros);
+        maxApplyMicros.accumulateAndGet(micros, Math::max);
+        for (Update update : updates) {
+            questionCache.onWrite(update); // os clientes do backup nao podem ver a pergunta antiga
+            liveAnswers.onWrite(update); // atualiza as respostas das perguntas ativas
+        }
+    }
+
+    // pergunta a diretoria quem e o principal a cada heartbeat: depois de uma falha
+    // este servidor promove-se, passa a seguir o novo primario ou deixa de ser principal
+    // subscreve a diretoria: a mudanca de primario chega logo (SERVER ...) e a renovacao da
+    // lease devolve o primario atual, o que tambem corrige uma notificacao perdida
+    private void watchPrimary() {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            InetAddress directoryAddr = InetAddress.getByName("localhost");
+            byte[] subscribe = "SUBSCRIBE".getBytes();
+            int renew = Math.max(100, Constants.DIRECTORY_LEASE / 3);
+            socket.setSoTimeout(renew);
+            byte[] buffer = new byte[1024];
+            long nextRenew = 0;
+            while (running.get()) {
+                if (System.currentTimeMillis() >= nextRenew) {
+                    socket.send(new DatagramPacket(subscribe, subscribe.length, directoryAddr,
+                            Constants.DIRECTORY_SERVICE_UDP_PORT));
+                    nextRenew = System.currentTimeMillis() + renew;
                 }
-                // copia a base de dados do servidor principal
-                try (FileOutputStream fos = new FileOutputStream(dbManager.getDbPath())) {
-                    byte[] buffer = new byte[4096];
-                    long totalRead = 0;
-                    int read;
-                    while (totalRead < fileSize
-                            && (read = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead))) != -1) {
-                        fos.write(buffer, 0, read);
-                        totalRead += read;
-                    }
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                String info = new String(packet.getData(), 0, packet.getLength());
+                if (!info.startsWith("SERVER"))
+                    continue; // NO_SERVERS e JOINED/LEFT nao mudam o primario
+                try {
+                    // SERVER <ip> <tcp_port> <sync_port> <db_version>
+                    String[] parts = info.trim().split(" ");
+                    followPrimary(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                            parts.length > 4 ? Integer.parseInt(parts[4]) : 0);
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                dbManager.connect(); // reabre a base de dados
-                System.out.println("Base de dados sincronizada com sucesso.");
+    private void followPrimary(String ip, int primaryTcp, int primarySyncPort, int version) throws IOException {
+        if (primaryTcp == tcpPort && primarySyncPort == syncPort && isLocalAddress(ip)) {
+            if (!isPrimary) {
+                System.out.println("Promovido a servidor principal (versao " + dbManager.getDbVersion() + ")");
+                primarySync = null;
+                primaryClient = null;
+                recentUpdates.clear(); // restos de um mandato anterior podem ter divergido
+                isPrimary = true;
+                receiver.onPrimaryChanged(dbManager.getDbVersion()); // descarta o que esperava do anterior
             }
+            return;
+        }
+        InetSocketAddress sync = new InetSocketAddress(ip, primarySyncPort);
+        if (!isPrimary && sync.equals(primarySync))
+            return; // o mesmo primario
+        boolean wasPrimary = isPrimary;
+        System.out.println((wasPrimary ? "Outro servidor foi escolhido como principal, este passa a backup: "
+                : "Novo servidor principal: ") + ip + ":" + primaryTcp + " (versao " + version + ")");
+        isPrimary = false;
+        recentUpdates.clear(); // so o primario serve retransmissoes pelo anel
+        primaryClient = ip + ":" + primaryTcp;
+        primarySync = sync;
+        // um ex-primario ou um backup a frente do novo primario tem escritas que o novo nao tem
+        if (wasPrimary || dbManager.getDbVersion() > version)
+            syncExecutor.execute(() -> receiver.resync(this::snapshotFromPrimary));
+        else
+            receiver.onPrimaryChanged(version);
+    }
 
+    private static boolean isLocalAddress(String ip) throws IOException {
+        InetAddress address = InetAddress.getByName(ip);
+        return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+    }
+
+    // copia completa mesmo com a versao igual (o conteudo pode ser diferente) e o resto pelo log
+    private void snapshotFromPrimary() {
+        InetSocketAddress primary = primarySync;
+        if (primary == null)
+            return;
+        try {
+            receiveSnapshot(primary);
+            recentUpdates.clear(); // as versoes locais passam a ser as do snapshot
+            catchUp(primary.getHostString(), primary.getPort());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // lacuna que o primario ja nao consegue retransmitir
+    private void resyncFromPrimary() {
+        InetSocketAddress primary = primarySync;
+        if (primary != null)
+            syncDatabase(primary.getHostString(), primary.getPort());
+    }
+
+    // copia completa para <db>.snapshot (retomada se a ligacao cair) e depois troca os ficheiros
+    private void receiveSnapshot(InetSocketAddress primary) throws IOException, SQLException {
+        File received = new File(dbManager.getDbPath() + ".snapshot");
+        long start = System.nanoTime();
+        int version = snapshots.receiveLatest(primary, received, Constants.SYNC_DELTA);
+
+        dbManager.close(); // fecha a base de dados para conseguir trocar o ficheiro
+        // guarda a base de dados atual do backup
+        File currentDb = new File(dbManager.getDbPath());
+        if (currentDb.exists()) {
+            File backup = new File(dbManager.getDbPath() + ".bak");
+            currentDb.renameTo(backup);
+        }
+        // o WAL antigo nao pertence a nova copia e corromperia a base de dados
+        new File(dbManager.getDbPath() + "-wal").delete();
+        new File(dbManager.getDbPath() + "-shm").delete();
+        Files.move(received.toPath(), currentDb.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        dbManager.connect(); // reabre a base de dados
+        questionCache.invalidateAll();
+        liveAnswers.reloadAll();
+        System.out.println("Base de dados sincronizada com sucesso: versao " + version + ", "
+                + currentDb.length() + " bytes em " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
     private void sendHeartbeats() {
         try (DatagramSocket udpSocket = new DatagramSocket();
                 MulticastSocket multicastSocket = new MulticastSocket()) {
 
             InetAddress directoryAddr = InetAddress.getByName("localhost");
             InetAddress multicastGroup = InetAddress.getByName(Constants.MULTICAST_GROUP);
+            // a versao no heartbeat revela aos backups escritas perdidas no fim do fluxo
+            NetworkInterface netIf = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+            if (netIf != null)
+                multicastSocket.setNetworkInterface(netIf);
 
+            long lastCount = receivedRequests.sum();
+            long lastTime = System.nanoTime();
             while (running.get()) {
-                // mensagem por udp para a diretoria
-                // Formato: HEARTBEAT <tcp_port> <db_version> <sync_port>
-                String msg = String.format("HEARTBEAT %d %d %d", tcpPort, dbManager.getDbVersion(), syncPort);
+                // pedidos por segundo desde o ultimo heartbeat
+                long count = receivedRequests.sum();
+                long now = System.nanoTime();
+                long rate = (count - lastCount) * 1_000_000_000L / Math.max(1, now - lastTime);
+                lastCount = count;
+                lastTime = now;
+
+                // mensagem por udp para a diretoria, com a carga para a escolha do servidor de leitura
+                // Formato: HEARTBEAT <tcp_port> <db_version> <sync_port> <P|B> <clientes> <pedidos/s> <em curso>
+                String msg = String.format("HEARTBEAT %d %d %d %s %d %d %d", tcpPort, dbManager.getDbVersion(),
+                        syncPort, isPrimary ? "P" : "B", activeClients.size(), rate, queuedRequests.get());
                 byte[] data = msg.getBytes();
 
                 DatagramPacket packet = new DatagramPacket(
@@ -185,15 +499,25 @@ public class Server {
             InetAddress group = InetAddress.getByName(Constants.MULTICAST_GROUP);
             NetworkInterface netIf = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
             socket.joinGroup(new InetSocketAddress(group, Constants.MULTICAST_PORT), netIf);
+            // rajadas de fragmentos nao devem transbordar o buffer do kernel
+            socket.setReceiveBufferSize(4 << 20);
 
-            byte[] buffer = new byte[4096];
+            byte[] buffer = new byte[65535]; // um lote pode ter uma escrita maior que o MTU
             while (running.get()) {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 socket.receive(packet);
 
+                if (ReplicationPublisher.isBatch(packet.getData(), packet.getLength())) {
+                    handleDbBatch(packet.getData(), packet.getLength());
+                    continue;
+                }
+                if (ReplicationFragments.isFragment(packet.getData(), packet.getLength())) {
+                    handleDbFragment(packet.getData(), packet.getLength());
+                    continue;
+                }
                 String msg = new String(packet.getData(), 0, packet.getLength());
-                if (msg.startsWith("UPDATE")) { // se for uma mensagem de update
-                    handleDbUpdate(msg); // atualiza a base de dados
+                if (msg.startsWith("HEARTBEAT")) {
+                    handleGroupHeartbeat(msg, packet.getAddress());
                 }
             }
         } catch (IOException e) {
@@ -201,103 +525,199 @@ public class Server {
         }
     }
 
-    private void handleDbUpdate(String msg) { // funcao auxiliar para atualizar a base de dados
+    // fragmento de uma escrita grande, aplicada quando chegam todos
+    private void handleDbFragment(byte[] data, int length) {
         if (isPrimary)
-            return; // se for o servidor principal, ignora
-        try { // processa a mensagem de update formato UPDATE <versao> <sql>
-            int firstSpace = msg.indexOf(' ');
-            int secondSpace = msg.indexOf(' ', firstSpace + 1);
-
-            if (firstSpace == -1 || secondSpace == -1)
-                return;
+            return;
+        try {
+            byte[] change = fragments.offer(data, length);
+            if (change != null)
+                receiver.onUpdate(ReplicationFragments.versionOf(data), Update.decode(change));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            int version = Integer.parseInt(msg.substring(firstSpace + 1, secondSpace));
-            String sql = msg.substring(secondSpace + 1);
+    // heartbeat do primario no grupo: HEARTBEAT <tcp_port> <db_version> <sync_port> <P|B> ...
+    // so conta se vier do endereco e porta de sync do primario e ele ainda se disser primario
+    private void handleGroupHeartbeat(String msg, InetAddress sender) {
+        InetSocketAddress primary = primarySync;
+        if (isPrimary || primary == null)
+            return;
+        String[] parts = msg.trim().split(" ");
+        if (parts.length < 5 || !"P".equals(parts[4]) || Integer.parseInt(parts[3]) != primary.getPort()
+                || !sameHost(sender, primary.getAddress()))
+            return; // heartbeat de um backup ou de outra maquina com a mesma porta
+        receiver.onPrimaryVersion(Integer.parseInt(parts[2]));
+    }
 
-            int localVersion = dbManager.getDbVersion();
+    // a diretoria pode ver o primario por localhost e o multicast sair pelo endereco da interface
+    private static boolean sameHost(InetAddress sender, InetAddress primary) {
+        if (sender.equals(primary))
+            return true;
+        try {
+            return primary.isLoopbackAddress() && NetworkInterface.getByInetAddress(sender) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
 
-            if (version == localVersion + 1) {
-                System.out.println("Applying update version " + version);
-                dbManager.executeUpdate(sql); // aplica a atualizacao a base de dados local
-            } else if (version > localVersion + 1) {
-                System.err.println(
-                        "Atualizacoes perdidas (Local: " + localVersion + ", Remoto: " + version + ").");
-                System.err.println("Servidor encerrado.");
-                running.set(false);
-                System.exit(1);
-            }
+    // lote de escritas seguidas enviado pelo ReplicationPublisher do primario
+    private void handleDbBatch(byte[] data, int length) {
+        if (isPrimary)
+            return;
+        try {
+            List<byte[]> changes = new java.util.ArrayList<>();
+            int first = ReplicationPublisher.decode(data, length, changes);
+            List<Update> updates = new java.util.ArrayList<>(changes.size());
+            for (byte[] change : changes)
+                updates.add(Update.decode(change));
+            receiver.onUpdates(first, updates);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     private void listenSync() { // escuta por pedidos de sincronizacao
-        try (ServerSocket serverSocket = new ServerSocket(syncPort)) {
+        // canais para a copia completa seguir com transferTo (sendfile)
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(syncPort));
             while (running.get()) {
-                Socket client = serverSocket.accept();
-                new Thread(() -> handleSyncRequest(client)).start();
+                SocketChannel client = serverChannel.accept();
+                syncExecutor.execute(() -> handleSyncRequest(client));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void handleSyncRequest(Socket client) {
-        try (DataInputStream in = new DataInputStream(client.getInputStream());
-                DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+    private void handleSyncRequest(SocketChannel client) {
+        try (client;
+                DataInputStream in = new DataInputStream(client.socket().getInputStream());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.socket().getOutputStream()))) {
 
             String request = in.readUTF();
-            if ("SYNC_REQUEST".equals(request)) {
-                File dbFile = new File(dbManager.getDbPath());
-                if (dbFile.exists()) {
-                    out.writeLong(dbFile.length()); // envia o tamanho do ficheiro
-                    try (FileInputStream fis = new FileInputStream(dbFile)) {
-                        byte[] buffer = new byte[4096];
-                        int read;
-                        while ((read = fis.read(buffer)) != -1) {
-                            out.write(buffer, 0, read); // envia o ficheiro
-                        }
+            if ("SYNC_REQUEST".equals(request)) { // copia completa (backups antigos)
+                snapshots.sendLegacy(out, client);
+            } else if (request.startsWith("DELTA ")) { // DELTA <tamanho da pagina> <n> e os hashes
+                String[] parts = request.split(" ");
+                snapshots.sendDelta(in, out, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            } else if (request.startsWith("SNAPSHOT ")) { // SNAPSHOT <versao> <offset>
+                String[] parts = request.split(" ");
+                snapshots.send(client, Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+            } else if (request.startsWith("CATCHUP ")) {
+                int from = Integer.parseInt(request.substring(8).trim());
+                try (DatabaseManager.Lease db = dbManager.acquireReader()) {
+                    if (ReplicationLog.covers(db, from, dbManager.getDbVersion())) {
+                        out.writeUTF("LOG");
+                        int last = ReplicationLog.forEach(db, from, Integer.MAX_VALUE,
+                                (version, change) -> ReplicationLog.writeEntry(out, version, change));
+                        ReplicationLog.endStream(out);
+                        metrics.counter("sync.catchup").increment();
+                        metrics.counter("sync.catchup_versoes").add(last - from);
+                        System.out.println("Catch-up enviado: versoes " + (from + 1) + " a " + last);
+                    } else {
+                        out.writeUTF("SNAPSHOT"); // o log ja nao tem as versoes, o backup pede a copia
                     }
-                } else {
-                    out.writeLong(0);
                 }
+            } else if (request.startsWith("RETRANSMIT ")) { // versoes perdidas no multicast
+                String[] parts = request.split(" ");
+                handleRetransmit(out, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
             }
-        } catch (IOException e) {
+            out.flush();
+        } catch (IOException | SQLException e) {
             e.printStackTrace();
         }
     }
 
+    // primeiro o anel em memoria, depois o log; GONE se ja nao houver as versoes
+    private void handleRetransmit(DataOutputStream out, int from, int to) throws IOException, SQLException {
+        metrics.counter("replicacao.retransmissoes_servidas").increment();
+        List<byte[]> recent = recentUpdates.range(from, to);
+        if (recent != null) {
+            out.writeUTF("LOG");
+            int version = from;
+            for (byte[] change : recent)
+                ReplicationLog.writeEntry(out, version++, change);
+            ReplicationLog.endStream(out);
+            return;
+        }
+        try (DatabaseManager.Lease db = dbManager.acquireReader()) {
+            if (ReplicationLog.covers(db, from - 1, to)) {
+                metrics.counter("replicacao.retransmissoes_do_log").increment();
+                out.writeUTF("LOG");
+                ReplicationLog.forEach(db, from - 1, to, (version, change) -> ReplicationLog.writeEntry(out, version, change));
+                ReplicationLog.endStream(out);
+                return;
+            }
+        }
+        out.writeUTF("GONE");
+    }
+
     private void listenClients() { // funcao para escutar por clientes atraves do client handler
+        if ("nio".equals(transportMode)) { // modo por eventos, poucas threads para todas as ligacoes
+            new NioTransport(this, dbManager, tcpPort, running, Constants.NIO_IO_THREADS,
+                    Constants.NIO_WORKER_THREADS, Constants.NIO_WORKER_QUEUE).run();
+            return;
+        }
         try (ServerSocket serverSocket = new ServerSocket(tcpPort)) {
             while (running.get()) {
                 Socket client = serverSocket.accept();
-                new Thread(new ClientHandler(client, dbManager, this)).start();
+                clientExecutor.execute(new ClientHandler(client, dbManager, this));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public synchronized void executeUpdate(String sql) {
+    // a escrita entra no lote do group commit, volta depois do commit e da publicacao
+    // devolve false se a escrita falhou (ex: chave duplicada)
+    public boolean executeUpdate(Update update) {
         try {
-            // Atualiza a base de dados local
-            dbManager.executeUpdate(sql);
-
-            // envia mensagem de update para o grupo
-            // Formato: UPDATE <versao> <sql>
-            String msg = "UPDATE " + dbManager.getDbVersion() + " " + sql;
-            byte[] data = msg.getBytes();
-
-            try (DatagramSocket socket = new DatagramSocket()) {
-                DatagramPacket packet = new DatagramPacket(
-                        data, data.length, InetAddress.getByName(Constants.MULTICAST_GROUP), Constants.MULTICAST_PORT);
-                socket.send(packet);
-            }
-        } catch (Exception e) {
+            executeUpdates(List.of(update));
+            return true;
+        } catch (SQLException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
+    // varias escritas tudo ou nada, cada uma com a sua versao enviada ao grupo
+    public void executeUpdates(List<Update> updates) throws SQLException {
+        if (!isPrimary) // a escrita local desviava o backup do primario
+            throw new SQLException("Servidor de backup nao aceita escritas");
+        writer.execute(updates);
+    }
+
+    // chamado pelo group commit depois do commit, antes de libertar quem escreveu
+    private void onCommitted(int version, Update update) {
+        byte[] change = update.encode(); // os mesmos bytes no log, no anel e no multicast
+        questionCache.onWrite(update);
+        liveAnswers.onWrite(update);
+        recentUpdates.add(version, change);
+        publisher.publish(version, change); // so entra na fila, o envio e feito pela thread do publisher
+    }
+
+    // processa um pedido de um cliente em modo blocking (varios pedidos por ligacao)
+    void executeRequest(Runnable task) {
+        requestExecutor.execute(task);
+    }
+
+    // pedido recebido de um cliente (qualquer transporte), conta ate ser respondido
+    void requestQueued() {
+        receivedRequests.increment();
+        queuedRequests.incrementAndGet();
+    }
+
+    void requestDone() {
+        queuedRequests.decrementAndGet();
+    }
+
+    // tarefa de longa duracao associada a uma ligacao (ex: writer da fila de saida com virtual threads)
+    Future<?> startClientTask(Runnable task) {
+        return clientExecutor.submit(task);
+    }
+
     public void addClient(ClientHandler client) {
         activeClients.add(client);
         System.out.println("Cliente conectado. Total: " + activeClients.size());
@@ -309,25 +729,71 @@ public class Server {
     }
 
     // funcao para enviar mensagem para todos os clientes
-    public void broadcast(common.Message msg, ClientHandler sender) {
-        synchronized (activeClients) { // bloqueia a lista para iterar
-            for (ClientHandler client : activeClients) {
-                if (client != sender) {
-                    client.sendMessage(msg);
+    // nao bloqueia: a notificacao e distribuida pela thread de fanout
+    public void broadcast(Message msg, ClientHandler sender) {
+        notifications.offer(new Notification(msg, sender));
+    }
+
+    // coloca cada notificacao na fila de saida de cada cliente (enqueue sem bloquear)
+    private void fanoutNotifications() {
+        long lastCheck = System.nanoTime();
+        while (running.get()) {
+            try {
+                Notification n = notifications.poll(1, TimeUnit.SECONDS);
+                if (n != null) {
+                    for (ClientHandler client : activeClients) {
+                        if (client != n.sender) {
+                            client.sendNotification(n.msg);
+                        }
+                    }
                 }
+                // uma vez por segundo desliga quem tem a escrita parada, para nao prender quem escreve
+                long now = System.nanoTime();
+                if (now - lastCheck >= 1_000_000_000L) {
+                    lastCheck = now;
+                    for (ClientHandler client : activeClients)
+                        client.closeIfWriteStalled(now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
         }
     }
 
+    private void reportMetrics() {
+        while (running.get()) {
+            try {
+                Thread.sleep(Constants.METRICS_REPORT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            System.out.println(metrics.report());
+        }
+    }
+
+    private static class Notification {
+        final Message msg;
+        final ClientHandler sender;
+
+        Notification(Message msg, ClientHandler sender) {
+            this.msg = msg;
+            this.sender = sender;
+        }
+    }
+
     private void checkTimers() {
         System.out.println("Thread de verificacao temporal iniciada...");
+        long lastCheck = System.currentTimeMillis() / 1000;
         while (running.get()) {
             try {
-                // Obtém todas as perguntas
-                List<DatabaseManager.QuestionTimerData> questions = dbManager.getAllQuestionTimers();
+                // So as perguntas ativas ou que terminaram desde a ultima verificacao
                 long now = System.currentTimeMillis() / 1000;
+                List<DatabaseManager.QuestionTimerData> questions = dbManager.getQuestionTimers(lastCheck, now);
+                Set<Integer> seen = new HashSet<>();
 
                 for (DatabaseManager.QuestionTimerData q : questions) {
+                    seen.add(q.id);
                     boolean isActiveTime = (q.startTime <= now && q.endTime > now);
                     boolean isExpiredTime = (q.endTime <= now);
                     boolean wasActiveInMemory = activeQuestionIds.contains(q.id);
@@ -335,6 +801,7 @@ public class Server {
                     // CASO 1: A pergunta acabou de entrar no horário de início
                     if (isActiveTime && !wasActiveInMemory) {
                         activeQuestionIds.add(q.id);
+                        liveAnswers.activate(q.id);
                         String msg = "A pergunta '" + q.prompt + "' acabou de começar! Boa sorte.";
                         System.out.println("[TIMER] Notificando inicio: " + q.prompt);
                         // Envia para todos
@@ -344,11 +811,22 @@ public class Server {
                     // CASO 2: A pergunta acabou de expirar
                     else if (isExpiredTime && wasActiveInMemory) {
                         activeQuestionIds.remove(q.id);
+                        liveAnswers.release(q.id);
                         String msg = "A pergunta '" + q.prompt + "' terminou. O tempo esgotou-se.";
                         System.out.println("[TIMER] Notificando fim: " + q.prompt);
                         broadcast(new common.Message(common.Message.Type.NOTIFICATION, msg), null);
                     }
                 }
+                // perguntas apagadas ou editadas para fora do intervalo deixam de estar ativas
+                synchronized (activeQuestionIds) {
+                    activeQuestionIds.removeIf(id -> {
+                        if (seen.contains(id))
+                            return false;
+                        liveAnswers.release(id);
+                        return true;
+                    });
+                }
+                lastCheck = now;
 
                 // Verifica a cada 5 segundos
                 Thread.sleep(5000);
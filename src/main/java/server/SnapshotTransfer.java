@@ -0,0 +1,400 @@
+package server;
+
+import common.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/*
+    Copia completa da base de dados entre o primario e um backup
+    O primario gera uma copia consistente com VACUUM INTO, marcada com a versao que
+    representa, e reutiliza-a enquanto a versao nao muda. O ficheiro segue pelo socket
+    com transferTo (sendfile) e o backup escreve-o com transferFrom.
+    Pedido: SNAPSHOT <versao> <offset>, resposta: <versao> <tamanho> <crc32> <offset> e os bytes.
+    Se a ligacao cair o backup pede a mesma versao a partir do que ja recebeu; se o
+    primario ja nao a tiver envia a atual desde o inicio.
+
+    Modo por diferencas (DELTA <tamanho da pagina> <n>): o backup envia o hash de cada
+    pagina de uma copia sua e o primario so envia as paginas da copia dele que o backup
+    nao tem. As restantes sao copiadas da propria pagina do backup com o mesmo conteudo
+    (a posicao pode mudar, o VACUUM reorganiza as tabelas), por isso o volume
+    transferido depende do que mudou e nao do tamanho da base de dados.
+ */
+class SnapshotTransfer {
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 8;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int MAX_RUN = 256; // paginas por operacao do delta
+    private static final byte OP_COPY = 'C'; // <pagina do backup> <n>: reutiliza paginas do backup
+    private static final byte OP_DATA = 'D'; // <n> e as paginas
+    private static final byte OP_END = 'E';
+
+    private final DatabaseManager dbManager;
+    private final Metrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Snapshot latest; // ultima copia gerada (primario)
+
+    SnapshotTransfer(DatabaseManager dbManager, Metrics metrics) {
+        this.dbManager = dbManager;
+        this.metrics = metrics;
+    }
+
+    static final class Snapshot {
+        final int version;
+        final File file;
+        final long size;
+        final long crc;
+
+        Snapshot(int version, File file, long size, long crc) {
+            this.version = version;
+            this.file = file;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    // copia pedida para retomar ou, se ja nao existir, uma atual (gerada so se a versao mudou)
+    Snapshot snapshot(int wanted) throws IOException, SQLException {
+        lock.lock();
+        try {
+            if (latest != null && latest.file.exists()
+                    && (latest.version == wanted || latest.version == dbManager.getDbVersion()))
+                return latest;
+            long start = System.nanoTime();
+            File tmp = new File(dbManager.getDbPath() + ".snapshot.tmp");
+            int version = dbManager.snapshotTo(tmp);
+            File file = new File(dbManager.getDbPath() + ".snapshot-" + version);
+            if (!tmp.renameTo(file))
+                throw new IOException("Nao foi possivel guardar a copia " + file);
+            if (latest != null && !latest.file.equals(file))
+                latest.file.delete(); // envios em curso mantem o ficheiro aberto
+            latest = new Snapshot(version, file, file.length(), crc(file));
+            metrics.counter("sync.snapshot_criadas").increment();
+            System.out.println("Copia da base de dados gerada: versao " + version + ", " + latest.size
+                    + " bytes em " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return latest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // primario: cabecalho e bytes a partir do offset pedido
+    void send(SocketChannel channel, int wanted, long offset) throws IOException, SQLException {
+        Snapshot snapshot = snapshot(wanted);
+        long start = snapshot.version == wanted && offset <= snapshot.size ? offset : 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(snapshot.version).putLong(snapshot.size).putLong(snapshot.crc).putLong(start).flip();
+        while (header.hasRemaining())
+            channel.write(header);
+        sendFile(snapshot, start, channel);
+        metrics.counter("sync.snapshots").increment();
+        if (start > 0)
+            metrics.counter("sync.snapshot_retomadas").increment();
+    }
+
+    // primario: formato antigo (SYNC_REQUEST), <tamanho> e os bytes
+    void sendLegacy(DataOutputStream out, SocketChannel channel) throws IOException, SQLException {
+        Snapshot snapshot = snapshot(-1);
+        out.writeLong(snapshot.size);
+        out.flush();
+        sendFile(snapshot, 0, channel);
+        metrics.counter("sync.snapshots").increment();
+    }
+
+    private void sendFile(Snapshot snapshot, long position, SocketChannel channel) throws IOException {
+        try (FileChannel file = FileChannel.open(snapshot.file.toPath(), StandardOpenOption.READ)) {
+            long sent = position;
+            while (sent < snapshot.size)
+                sent += file.transferTo(sent, snapshot.size - sent, channel);
+            metrics.counter("sync.snapshot_bytes").add(sent - position);
+        }
+    }
+
+    // backup: recebe a copia para target, retomando se a ligacao cair; devolve a versao
+    int receive(InetSocketAddress primary, File target) throws IOException {
+        int version = -1;
+        long received = 0;
+        IOException last = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            long size = 0;
+            try (SocketChannel channel = SocketChannel.open(primary);
+                    FileChannel file = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE)) {
+                // sem buffer: os bytes do ficheiro sao lidos do canal logo a seguir ao cabecalho
+                new DataOutputStream(channel.socket().getOutputStream())
+                        .writeUTF("SNAPSHOT " + version + " " + received);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining())
+                    if (channel.read(header) < 0)
+                        throw new EOFException("Ligacao fechada antes do cabecalho da copia");
+                header.flip();
+                int sentVersion = header.getInt();
+                size = header.getLong();
+                long crc = header.getLong();
+                long offset = header.getLong();
+                if (sentVersion != version || offset != received) {
+                    version = sentVersion; // outra copia, recomeca do offset indicado
+                    received = offset;
+                }
+                file.truncate(received); // descarta o que nao chegou a ser confirmado
+                while (received < size) {
+                    long n = file.transferFrom(channel, received, size - received);
+                    if (n <= 0)
+                        throw new EOFException("Copia interrompida em " + received + "/" + size);
+                    received += n;
+                }
+                file.force(false);
+                if (crc(target) != crc) {
+                    metrics.counter("sync.snapshot_crc_erros").increment();
+                    System.err.println("Copia com checksum invalido, a pedir de novo");
+                    version = -1;
+                    received = 0;
+                    continue;
+                }
+                return version;
+            } catch (IOException e) {
+                last = e;
+                metrics.counter("sync.snapshot_interrompidas").increment();
+                System.err.println("Transferencia da copia interrompida (" + received + "/" + size
+                        + " bytes), a retomar: " + e.getMessage());
+                try {
+                    Thread.sleep(500L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        throw last != null ? last : new IOException("Copia invalida depois de " + MAX_ATTEMPTS + " tentativas");
+    }
+
+    // primario: le os hashes do backup e responde com <versao> <tamanho> <crc32> e as operacoes
+    void sendDelta(DataInputStream in, DataOutputStream out, int pageSize, int count)
+            throws IOException, SQLException {
+        byte[] raw = new byte[count * 8];
+        in.readFully(raw);
+        ByteBuffer hashes = ByteBuffer.wrap(raw);
+        Map<Long, Integer> pages = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++)
+            pages.putIfAbsent(hashes.getLong(), i); // primeira pagina com esse conteudo
+
+        Snapshot snapshot = snapshot(-1);
+        out.writeInt(snapshot.version);
+        out.writeLong(snapshot.size);
+        out.writeLong(snapshot.crc);
+        if (pageSize != pageSize(snapshot.file))
+            pages.clear(); // paginas de tamanho diferente, vai tudo
+        // com paginas maiores que as do primario a ultima pode ficar a meio: vai completada
+        // com zeros e o backup corta o ficheiro no tamanho certo
+        long pageCount = (snapshot.size + pageSize - 1) / pageSize;
+        PageHash hash = new PageHash();
+        byte[] page = new byte[pageSize];
+        byte[] run = new byte[MAX_RUN * pageSize]; // paginas seguidas por enviar
+        int runPages = 0;
+        int copyFrom = -1; // inicio da copia em curso no ficheiro do backup
+        int copyCount = 0;
+        long sent = 0;
+        try (FileChannel file = FileChannel.open(snapshot.file.toPath(), StandardOpenOption.READ)) {
+            for (long p = 0; p < pageCount; p++) {
+                readPage(file, p, pageSize, page);
+                Integer match = pages.get(hash.of(page));
+                if (match != null) {
+                    runPages = flushData(out, run, runPages, pageSize);
+                    if (copyCount > 0 && match == copyFrom + copyCount && copyCount < MAX_RUN) {
+                        copyCount++;
+                        continue;
+                    }
+                    flushCopy(out, copyFrom, copyCount);
+                    copyFrom = match;
+                    copyCount = 1;
+                } else {
+                    flushCopy(out, copyFrom, copyCount);
+                    copyCount = 0;
+                    System.arraycopy(page, 0, run, runPages * pageSize, pageSize);
+                    runPages++;
+                    sent++;
+                    if (runPages == MAX_RUN)
+                        runPages = flushData(out, run, runPages, pageSize);
+                }
+            }
+        }
+        flushData(out, run, runPages, pageSize);
+        flushCopy(out, copyFrom, copyCount);
+        out.writeByte(OP_END);
+        metrics.counter("sync.delta").increment();
+        metrics.counter("sync.delta_paginas_enviadas").add(sent);
+        metrics.counter("sync.delta_paginas_reutilizadas").add(pageCount - sent);
+        System.out.println("Copia por diferencas: " + sent + " de " + pageCount + " paginas enviadas (versao "
+                + snapshot.version + ")");
+    }
+
+    private static int flushData(DataOutputStream out, byte[] run, int pages, int pageSize) throws IOException {
+        if (pages > 0) {
+            out.writeByte(OP_DATA);
+            out.writeInt(pages);
+            out.write(run, 0, pages * pageSize);
+        }
+        return 0;
+    }
+
+    private static void flushCopy(DataOutputStream out, int from, int count) throws IOException {
+        if (count > 0) {
+            out.writeByte(OP_COPY);
+            out.writeInt(from);
+            out.writeInt(count);
+        }
+    }
+
+    // backup: copia do primario em target, por diferencas se o backup ja tiver uma base de dados;
+    // se o delta falhar (ligacao, checksum) pede a copia completa. Devolve a versao
+    int receiveLatest(InetSocketAddress primary, File target, boolean delta) throws IOException, SQLException {
+        if (delta && new File(dbManager.getDbPath()).length() > 0) {
+            try { // so as paginas que mudaram desde a copia que o backup ja tem
+                return receiveDelta(primary, target);
+            } catch (IOException | SQLException e) {
+                metrics.counter("sync.delta_falhadas").increment();
+                System.err.println("Copia por diferencas falhou, a pedir a copia completa: " + e.getMessage());
+            }
+        }
+        return receive(primary, target);
+    }
+
+    // backup: monta a copia do primario em target a partir de uma copia local e das paginas
+    // que mudaram; devolve a versao (IOException se falhar, a chamar depois o modo completo)
+    int receiveDelta(InetSocketAddress primary, File target) throws IOException, SQLException {
+        File base = new File(dbManager.getDbPath() + ".base");
+        try {
+            dbManager.snapshotTo(base); // copia consistente sem parar a replicacao
+            int pageSize = pageSize(base);
+            long count = base.length() / pageSize;
+            ByteBuffer hashes = ByteBuffer.allocate((int) count * 8);
+            PageHash hash = new PageHash();
+            byte[] page = new byte[pageSize];
+            try (FileChannel file = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+                    Socket socket = new Socket(primary.getAddress(), primary.getPort());
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                    FileChannel result = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long p = 0; p < count; p++) {
+                    readPage(file, p, pageSize, page);
+                    hashes.putLong(hash.of(page));
+                }
+                out.writeUTF("DELTA " + pageSize + " " + count);
+                out.write(hashes.array());
+                out.flush();
+
+                int version = in.readInt();
+                long size = in.readLong();
+                long crc = in.readLong();
+                long position = 0;
+                long received = 0;
+                byte op;
+                while ((op = in.readByte()) != OP_END) {
+                    if (op == OP_COPY) {
+                        int from = in.readInt();
+                        int n = in.readInt();
+                        long length = (long) n * pageSize;
+                        long done = 0;
+                        while (done < length) // de ficheiro para ficheiro, sem passar pela heap
+                            done += file.transferTo((long) from * pageSize + done, length - done, result.position(position + done));
+                        position += length;
+                    } else if (op == OP_DATA) {
+                        int n = in.readInt();
+                        for (int i = 0; i < n; i++) {
+                            in.readFully(page);
+                            ByteBuffer buffer = ByteBuffer.wrap(page);
+                            while (buffer.hasRemaining())
+                                result.write(buffer, position + buffer.position());
+                            position += pageSize;
+                        }
+                        received += n;
+                    } else {
+                        throw new IOException("Operacao de delta invalida: " + op);
+                    }
+                }
+                result.truncate(size); // tira o enchimento da ultima pagina
+                result.force(false);
+                if (position < size || crc(target) != crc) {
+                    metrics.counter("sync.snapshot_crc_erros").increment();
+                    throw new IOException("Copia por diferencas invalida");
+                }
+                metrics.counter("sync.delta_paginas_recebidas").add(received);
+                System.out.println("Copia por diferencas: " + received + " de " + (size + pageSize - 1) / pageSize
+                        + " paginas recebidas (" + received * pageSize + " bytes)");
+                return version;
+            }
+        } finally {
+            base.delete();
+        }
+    }
+
+    // le a pagina; se o ficheiro acabar a meio o resto fica a zeros (so na ultima pagina)
+    private static void readPage(FileChannel file, long page, int pageSize, byte[] into) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(into);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, page * pageSize + buffer.position()) < 0) {
+                if (buffer.position() == 0)
+                    throw new EOFException();
+                Arrays.fill(into, buffer.position(), pageSize, (byte) 0);
+                return;
+            }
+        }
+    }
+
+    // tamanho da pagina no cabecalho do ficheiro SQLite (bytes 16-17, 1 = 65536)
+    static int pageSize(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(18);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.read(header, 0);
+        }
+        int size = header.getShort(16) & 0xFFFF;
+        return size == 1 ? 65536 : size;
+    }
+
+    // 64 bits de dois crc diferentes (CRC32C e CRC32, ambos com instrucoes do processador);
+    // uma colisao seria apanhada pelo crc32 do ficheiro todo e o backup pedia a copia completa
+    private static final class PageHash {
+        private final CRC32C high = new CRC32C();
+        private final CRC32 low = new CRC32();
+
+        long of(byte[] page) {
+            high.reset();
+            high.update(page);
+            low.reset();
+            low.update(page);
+            return high.getValue() << 32 | low.getValue();
+        }
+    }
+
+    static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+}
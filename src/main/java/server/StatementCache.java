@@ -0,0 +1,51 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    PreparedStatements de uma ligacao, guardados pelo texto SQL
+    O SQLite so analisa e planeia cada query uma vez por ligacao.
+    Nao e thread-safe: a ligacao e usada por um pedido de cada vez
+    (emprestada pela pool ou protegida pelo lock de escrita).
+ */
+class StatementCache implements AutoCloseable {
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    StatementCache(Connection conn) {
+        this.conn = conn;
+    }
+
+    Connection connection() {
+        return conn;
+    }
+
+    // devolve o statement ja preparado, sem parametros da utilizacao anterior
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = conn.prepareStatement(sql);
+            statements.put(sql, ps);
+        } else {
+            ps.clearParameters();
+        }
+        return ps;
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (PreparedStatement ps : statements.values()) {
+            ps.close();
+        }
+        statements.clear();
+        conn.close();
+    }
+}
@@ -0,0 +1,256 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/*
+    Escrita estruturada: operacao, tabela, colunas alteradas, colunas da condicao e valores
+    O SQL e gerado a partir da forma, o primario e os backups correm exatamente o mesmo
+    statement (em cache na ligacao de escrita) so com os valores diferentes.
+    Para a replicacao e o log vai em binario com encode(), os backups usam decode().
+ */
+public final class Update {
+    public enum Op {
+        INSERT, UPDATE, DELETE
+    }
+
+    private static final String[] NONE = {};
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_TEXT = 2;
+    private static final byte TYPE_REAL = 3;
+
+    private final Op op;
+    private final String table;
+    private final String[] columns; // INSERT: colunas inseridas, UPDATE: colunas do SET
+    private final String[] keys; // colunas do WHERE (UPDATE e DELETE)
+    private final Object[] values; // valores das colunas e depois das chaves
+    private final String generatedKey; // INSERT com chave gerada pela base de dados (so no primario)
+    private final String sql;
+    private byte[] encoded; // usado no log e na publicacao, calcula uma vez
+
+    private Update(Op op, String table, String[] columns, String[] keys, Object[] values) {
+        this(op, table, columns, keys, values, null);
+    }
+
+    private Update(Op op, String table, String[] columns, String[] keys, Object[] values, String generatedKey) {
+        if (values.length != columns.length + keys.length)
+            throw new IllegalArgumentException("Numero de valores diferente das colunas em " + table);
+        this.op = op;
+        this.table = table;
+        this.columns = columns;
+        this.keys = keys;
+        this.values = values;
+        this.generatedKey = generatedKey;
+        this.sql = render();
+    }
+
+    public static Update insert(String table, String[] columns, Object... values) {
+        return new Update(Op.INSERT, table, columns, NONE, values);
+    }
+
+    // INSERT numa tabela com chave AUTOINCREMENT: o primario deixa a base de dados gerar a chave
+    // e replica withKey(), os backups inserem com a mesma chave explicita
+    public static Update insertGenerated(String table, String key, String[] columns, Object... values) {
+        return new Update(Op.INSERT, table, columns, NONE, values, key);
+    }
+
+    // valores das colunas do SET seguidos dos das chaves
+    public static Update update(String table, String[] columns, String[] keys, Object... values) {
+        return new Update(Op.UPDATE, table, columns, keys, values);
+    }
+
+    public static Update delete(String table, String[] keys, Object... values) {
+        return new Update(Op.DELETE, table, NONE, keys, values);
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    // coluna da chave gerada, null se a escrita ja leva todos os valores
+    public String getGeneratedKey() {
+        return generatedKey;
+    }
+
+    // o mesmo INSERT com a chave gerada no primario como coluna explicita
+    public Update withKey(long key) {
+        String[] withColumns = new String[columns.length + 1];
+        Object[] withValues = new Object[values.length + 1];
+        withColumns[0] = generatedKey;
+        withValues[0] = key;
+        System.arraycopy(columns, 0, withColumns, 1, columns.length);
+        System.arraycopy(values, 0, withValues, 1, values.length);
+        return new Update(op, table, withColumns, keys, withValues);
+    }
+
+    // valor de uma coluna alterada ou inserida, null se nao fizer parte da escrita
+    public Object get(String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column))
+                return values[i];
+        }
+        return null;
+    }
+
+    void bind(PreparedStatement ps) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            ps.setObject(i + 1, values[i]);
+        }
+    }
+
+    private String render() {
+        StringBuilder sb = new StringBuilder(64);
+        switch (op) {
+            case INSERT:
+                sb.append("INSERT INTO ").append(table).append(" (").append(String.join(", ", columns))
+                        .append(") VALUES (");
+                for (int i = 0; i < columns.length; i++)
+                    sb.append(i == 0 ? "?" : ", ?");
+                return sb.append(')').toString();
+            case UPDATE:
+                sb.append("UPDATE ").append(table).append(" SET ");
+                for (int i = 0; i < columns.length; i++)
+                    sb.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+                break;
+            default:
+                sb.append("DELETE FROM ").append(table);
+        }
+        for (int i = 0; i < keys.length; i++)
+            sb.append(i == 0 ? " WHERE " : " AND ").append(keys[i]).append(" = ?");
+        return sb.toString();
+    }
+
+    // <op> <tabela> <n colunas> <colunas> <n chaves> <chaves> e os valores com o tipo
+    public byte[] encode() {
+        byte[] cached = encoded;
+        if (cached == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(32 + sql.length());
+            out.write(op.ordinal());
+            writeName(out, table);
+            out.write(columns.length);
+            for (String column : columns)
+                writeName(out, column);
+            out.write(keys.length);
+            for (String key : keys)
+                writeName(out, key);
+            for (Object value : values)
+                writeValue(out, value);
+            encoded = cached = out.toByteArray();
+        }
+        return cached;
+    }
+
+    public static Update decode(byte[] data) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            Op op = Op.values()[in.get()];
+            String table = readName(in);
+            String[] columns = new String[in.get() & 0xFF];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = readName(in);
+            String[] keys = new String[in.get() & 0xFF];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = readName(in);
+            Object[] values = new Object[columns.length + keys.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = readValue(in);
+            Update update = new Update(op, table, columns, keys, values);
+            update.encoded = data;
+            return update;
+        } catch (RuntimeException e) { // buffer curto, tipo ou operacao desconhecidos
+            throw new IOException("Escrita replicada invalida", e);
+        }
+    }
+
+    // nomes de tabelas e colunas (ASCII, ate 255 bytes)
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readName(ByteBuffer in) {
+        int length = in.get() & 0xFF;
+        String name = new String(in.array(), in.position(), length, StandardCharsets.US_ASCII);
+        in.position(in.position() + length);
+        return name;
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(TYPE_NULL);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.write(TYPE_REAL);
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.write((int) (bits >>> shift));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            long v = value instanceof Boolean ? ((Boolean) value ? 1 : 0) : ((Number) value).longValue();
+            out.write(TYPE_LONG);
+            writeVarLong(out, (v << 1) ^ (v >> 63)); // zigzag, valores pequenos num byte
+        } else {
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(TYPE_TEXT);
+            writeVarLong(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_LONG:
+                long zigzag = readVarLong(in);
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            case TYPE_REAL:
+                return in.getDouble();
+            case TYPE_TEXT:
+                int length = (int) readVarLong(in);
+                String text = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                return text;
+            default:
+                throw new IllegalArgumentException("Tipo de valor desconhecido: " + type);
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IllegalArgumentException("Varint demasiado longo");
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + Arrays.toString(values);
+    }
+}
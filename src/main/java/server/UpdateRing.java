@@ -0,0 +1,74 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Anel com as ultimas escritas publicadas pelo primario (versao, escrita codificada)
+    Serve os pedidos RETRANSMIT dos backups sem ir a base de dados.
+    As versoes entram seguidas (o group commit publica por ordem), mas cada posicao guarda a
+    sua versao e range() confirma-a: uma posicao que nao bate da null e o pedido vai ao log.
+    Ao mudar de papel o anel e limpo, as escritas de um mandato anterior podem ter divergido.
+ */
+class UpdateRing {
+    private final int[] versions;
+    private final byte[][] changes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int next = 0; // proxima posicao a escrever
+    private int count = 0;
+
+    UpdateRing(int capacity) {
+        this.versions = new int[Math.max(1, capacity)];
+        this.changes = new byte[versions.length][];
+    }
+
+    void add(int version, byte[] change) {
+        lock.lock();
+        try {
+            versions[next] = version;
+            changes[next] = change;
+            next = (next + 1) % versions.length;
+            if (count < versions.length)
+                count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            Arrays.fill(changes, null);
+            next = 0;
+            count = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // escritas de 'from' a 'to' (inclusive) por ordem, null se o anel nao as tiver todas
+    List<byte[]> range(int from, int to) {
+        lock.lock();
+        try {
+            if (count == 0 || from > to)
+                return null;
+            int newestSlot = (next - 1 + versions.length) % versions.length;
+            int newest = versions[newestSlot];
+            int oldest = newest - count + 1;
+            if (from < oldest || to > newest)
+                return null;
+            List<byte[]> result = new ArrayList<>(to - from + 1);
+            for (int v = from; v <= to; v++) {
+                int slot = (newestSlot - (newest - v) + versions.length) % versions.length;
+                if (versions[slot] != v || changes[slot] == null)
+                    return null; // versoes nao seguidas, quem pediu vai ao log
+                result.add(changes[slot]);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
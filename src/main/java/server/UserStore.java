@@ -0,0 +1,65 @@
+package server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Acesso a tabela users */
+public final class UserStore {
+    static final String FIND_ROLE = "SELECT role FROM users WHERE email = ? AND password = ?";
+    static final String EXISTS = "SELECT 1 FROM users WHERE email = ?";
+    private static final String TABLE = "users";
+    private static final String[] INSERT_COLUMNS =
+            { "name", "email", "password", "role", "student_id", "teacher_code_hash" };
+    private static final String[] BY_EMAIL = { "email" };
+
+    private UserStore() {
+    }
+
+    // devolve a role do utilizador ou null se as credenciais forem invalidas
+    public static String findRole(DatabaseManager.Lease db, String email, String password) throws SQLException {
+        PreparedStatement ps = db.prepare(FIND_ROLE);
+        ps.setString(1, email);
+        ps.setString(2, password);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getString("role") : null;
+        }
+    }
+
+    public static boolean exists(DatabaseManager.Lease db, String email) throws SQLException {
+        PreparedStatement ps = db.prepare(EXISTS);
+        ps.setString(1, email);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    public static Update insert(String name, String email, String password, String role,
+            String studentId, String teacherCodeHash) {
+        return Update.insert(TABLE, INSERT_COLUMNS, name, email, password, role, studentId, teacherCodeHash);
+    }
+
+    // so altera os campos preenchidos, devolve null se nao houver nada para alterar
+    public static Update updateProfile(String oldEmail, String name, String password,
+            String studentId, String newEmail) {
+        List<String> columns = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        addSet(columns, values, "name", name);
+        addSet(columns, values, "password", password);
+        addSet(columns, values, "student_id", studentId);
+        addSet(columns, values, "email", newEmail); // email por ultimo
+        if (columns.isEmpty())
+            return null;
+        values.add(oldEmail);
+        return Update.update(TABLE, columns.toArray(new String[0]), BY_EMAIL, values.toArray());
+    }
+
+    private static void addSet(List<String> columns, List<Object> values, String column, String value) {
+        if (value == null || value.isEmpty())
+            return;
+        columns.add(column);
+        values.add(value);
+    }
+}
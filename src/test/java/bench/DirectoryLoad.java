@@ -0,0 +1,161 @@
+package bench;
+
+import common.Constants;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Carga sustentada na diretoria: GET_SERVER em ciclo fechado mais uma rajada de HEARTBEAT
+    Uso: DirectoryLoad <segundos> <clientes> <threads de heartbeat> <heartbeats/s por thread, 0 sem limite>
+    A diretoria tem de estar a correr nesta maquina. Cada thread de heartbeat faz de 10 servidores,
+    o primeiro da thread 0 diz-se primario para o GET_SERVER ter resposta.
+    Mostra os GET_SERVER respondidos por segundo, respostas erradas e timeouts, os heartbeats
+    enviados e os packets tratados pela diretoria (contador diretoria.packets do GET_STATS).
+    Depois de mvn test-compile: java -cp target/classes:target/test-classes bench.DirectoryLoad 10 32 4 2000
+ */
+public class DirectoryLoad {
+    private static final InetAddress DIRECTORY = InetAddress.getLoopbackAddress();
+    private static final int PORT = Constants.DIRECTORY_SERVICE_UDP_PORT;
+    private static final int FIRST_PORT = 20000;
+
+    private static final AtomicBoolean running = new AtomicBoolean(true);
+    private static final AtomicLong answered = new AtomicLong();
+    private static final AtomicLong wrong = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
+    private static final AtomicLong heartbeats = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Uso: DirectoryLoad <segundos> <clientes> <threads de heartbeat> <heartbeats/s>");
+            return;
+        }
+        int seconds = Integer.parseInt(args[0]);
+        int clients = Integer.parseInt(args[1]);
+        int senders = Integer.parseInt(args[2]);
+        int rate = Integer.parseInt(args[3]);
+
+        // o primario regista-se antes dos outros: a diretoria mantem o primeiro escolhido
+        try (DatagramSocket socket = new DatagramSocket()) {
+            byte[] data = heartbeat(FIRST_PORT).getBytes(StandardCharsets.UTF_8);
+            socket.send(new DatagramPacket(data, data.length, DIRECTORY, PORT));
+        }
+        Thread.sleep(100);
+        for (int i = 0; i < senders; i++) {
+            int id = i;
+            Thread sender = new Thread(() -> heartbeats(id, rate), "heartbeat-" + i);
+            sender.setDaemon(true);
+            sender.start();
+        }
+        Thread.sleep(300); // o primario ja registado
+
+        long packetsBefore = stat("diretoria.packets");
+        long heartbeatsBefore = heartbeats.get();
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(DirectoryLoad::client, "cliente-" + i);
+            threads[i].start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads)
+            thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long sent = heartbeats.get() - heartbeatsBefore;
+
+        Thread.sleep(500); // a diretoria acaba a fila
+        long packetsAfter = stat("diretoria.packets");
+        System.out.printf("GET_SERVER: %d (%.0f/s), erradas %d, timeouts %d | HEARTBEAT enviados: %d (%.0f/s)%n",
+                answered.get(), answered.get() / elapsed, wrong.get(), timeouts.get(), sent, sent / elapsed);
+        if (packetsBefore >= 0 && packetsAfter >= 0)
+            System.out.printf("Packets tratados pela diretoria: %d (%.0f/s)%n", packetsAfter - packetsBefore,
+                    (packetsAfter - packetsBefore) / elapsed);
+        System.exit(0);
+    }
+
+    // 10 servidores por thread
+    private static void heartbeats(int id, int rate) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            long next = System.nanoTime();
+            for (int n = 0;; n++) {
+                byte[] data = heartbeat(FIRST_PORT + id * 10 + (n % 10)).getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(data, data.length, DIRECTORY, PORT));
+                heartbeats.incrementAndGet();
+                if (rate > 0) {
+                    next += 1_000_000_000L / rate;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } else if (!running.get()) {
+                    Thread.sleep(5); // depois da medicao so mantem os servidores vivos
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String heartbeat(int port) {
+        boolean primary = port == FIRST_PORT;
+        return "HEARTBEAT " + port + " " + (primary ? 100 : 1) + " " + (port + 1) + " " + (primary ? "P" : "B");
+    }
+
+    // um pedido de cada vez, o seguinte so depois da resposta ou do timeout
+    private static void client() {
+        String expected = "SERVER " + DIRECTORY.getHostAddress() + " " + FIRST_PORT + " ";
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(500);
+            byte[] request = "GET_SERVER".getBytes(StandardCharsets.UTF_8);
+            byte[] buffer = new byte[512];
+            while (running.get()) {
+                socket.send(new DatagramPacket(request, request.length, DIRECTORY, PORT));
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    String reply = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                    if (reply.startsWith(expected))
+                        answered.incrementAndGet();
+                    else
+                        wrong.incrementAndGet();
+                } catch (SocketTimeoutException e) {
+                    timeouts.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // valor de um contador do GET_STATS, -1 se nao houver resposta
+    // com a diretoria saturada o pedido pode perder-se, tenta algumas vezes
+    static long stat(String key) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(1000);
+            byte[] request = "GET_STATS".getBytes(StandardCharsets.UTF_8);
+            byte[] buffer = new byte[4096];
+            for (int attempt = 0; attempt < 5; attempt++) {
+                socket.send(new DatagramPacket(request, request.length, DIRECTORY, PORT));
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    String reply = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                    for (String field : reply.split("[ ,\n]+")) {
+                        if (field.startsWith(key + "="))
+                            return Long.parseLong(field.substring(key.length() + 1).trim());
+                    }
+                } catch (SocketTimeoutException e) {
+                    // tenta outra vez
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,121 @@
+package bench;
+
+import common.Metrics;
+import server.DatabaseManager;
+import server.GroupCommitWriter;
+import server.Update;
+import server.UserStore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Group commit com varias janelas e tamanhos de lote: escritores em ciclo fechado a registar
+    utilizadores (uma escrita por pedido, como o REGISTER) sobre uma base de dados temporaria
+    Uso: GroupCommitLoad <segundos por configuracao> <escritores> [janela_us:lote ...]
+    Sem configuracoes corre 0:1 (um commit por escrita, sem group commit), 0:256, 200:256, 1000:256 e 200:16.
+    Cada configuracao usa uma base de dados nova. Mostra as escritas e os commits por segundo,
+    o lote medio e maximo (escrita.lote_max) e a latencia p50/p99 de cada escrita ate ao commit.
+    Depois de mvn test-compile (com o sqlite-jdbc no classpath):
+    java -cp target/classes:target/test-classes:<sqlite-jdbc.jar> bench.GroupCommitLoad 5 64
+ */
+public class GroupCommitLoad {
+    private static final String[] DEFAULT_CONFIGS = { "0:1", "0:256", "200:256", "1000:256", "200:16" };
+    private static final int MAX_SAMPLES = 1_000_000; // latencias guardadas por escritor
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+    private static final AtomicLong writes = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong nextUser = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Uso: GroupCommitLoad <segundos por configuracao> <escritores> [janela_us:lote ...]");
+            return;
+        }
+        int seconds = Integer.parseInt(args[0]);
+        int writers = Integer.parseInt(args[1]);
+        String[] configs = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : DEFAULT_CONFIGS;
+
+        for (String config : configs) {
+            String[] parts = config.split(":");
+            run(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), seconds, writers);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int windowMicros, int maxBatch, int seconds, int writers) throws Exception {
+        File dir = Files.createTempDirectory("pd-bench").toFile();
+        DatabaseManager db = new DatabaseManager(new File(dir, "bench.db").getPath());
+        db.connect();
+        Metrics metrics = new Metrics("bench");
+        GroupCommitWriter writer = new GroupCommitWriter(db, (version, update) -> {
+        }, windowMicros, maxBatch, 10000, metrics);
+        writer.start(); // a thread do escritor fica parada na fila depois desta configuracao
+
+        List<long[]> samples = Collections.synchronizedList(new ArrayList<>());
+        writes.set(0);
+        failures.set(0);
+        running.set(true);
+        Thread[] threads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            threads[i] = new Thread(() -> samples.add(submitter(writer)), "escritor-" + i);
+            threads[i].start();
+        }
+        Thread.sleep(1000); // aquecimento, conta a partir daqui
+        long writesBefore = writes.get();
+        long batchesBefore = metrics.get("escrita.lotes");
+        long unitsBefore = metrics.get("escrita.unidades");
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long measured = writes.get() - writesBefore;
+        long batches = metrics.get("escrita.lotes") - batchesBefore;
+        long units = metrics.get("escrita.unidades") - unitsBefore;
+        running.set(false);
+        for (Thread thread : threads)
+            thread.join();
+
+        // os escritores so entregam as latencias no fim, inclui o aquecimento
+        long[] latencies = samples.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        long p50 = latencies.length > 0 ? latencies[latencies.length / 2] / 1000 : 0;
+        long p99 = latencies.length > 0 ? latencies[(int) (latencies.length * 0.99)] / 1000 : 0;
+        System.out.printf("janela %5d us, lote %3d: %6.0f escritas/s, %5.0f commits/s, lote medio %.1f, max %d, "
+                + "p50 %d us, p99 %d us, falhadas %d%n",
+                windowMicros, maxBatch, measured / elapsed, batches / elapsed,
+                batches > 0 ? (double) units / batches : 0, metrics.get("escrita.lote_max"), p50, p99,
+                failures.get());
+
+        db.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    // devolve as latencias (ns) de cada escrita, do pedido ate ao commit
+    private static long[] submitter(GroupCommitWriter writer) {
+        long[] latencies = new long[MAX_SAMPLES];
+        int count = 0;
+        while (running.get()) {
+            long n = nextUser.incrementAndGet();
+            Update user = UserStore.insert("u" + n, "u" + n + "@x.pt", "pw", "STUDENT", String.valueOf(n), null);
+            long sent = System.nanoTime();
+            try {
+                writer.execute(List.of(user));
+                writes.incrementAndGet();
+                if (count < latencies.length)
+                    latencies[count++] = System.nanoTime() - sent;
+            } catch (SQLException e) {
+                failures.incrementAndGet();
+            }
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+}
@@ -0,0 +1,130 @@
+package bench;
+
+import common.Constants;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Diretoria com muitos servidores registados: N servidores falsos com heartbeat a 1 Hz
+    e clientes em ciclo fechado a alternar GET_READ_SERVER e GET_SERVER
+    Uso: ManyServersLoad <segundos> <servidores> <clientes>
+    A diretoria tem de estar a correr nesta maquina. O servidor 0 diz-se primario, os outros backups
+    com a carga fixa "1 10 0". Mostra os heartbeats e os pedidos por segundo, os timeouts e a latencia
+    p50/p99 dos pedidos; o CPU da diretoria mede-se por fora (ex.: /proc/<pid>/stat).
+    Depois de mvn test-compile: java -cp target/classes:target/test-classes bench.ManyServersLoad 15 10000 8
+ */
+public class ManyServersLoad {
+    private static final InetAddress DIRECTORY = InetAddress.getLoopbackAddress();
+    private static final int PORT = Constants.DIRECTORY_SERVICE_UDP_PORT;
+    private static final int FIRST_PORT = 10000;
+    private static final int SENDERS = 4;
+    private static final int MAX_SAMPLES = 2_000_000; // latencias guardadas por cliente
+
+    private static final AtomicBoolean running = new AtomicBoolean(true);
+    private static final AtomicLong heartbeats = new AtomicLong();
+    private static final AtomicLong answered = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Uso: ManyServersLoad <segundos> <servidores> <clientes>");
+            return;
+        }
+        int seconds = Integer.parseInt(args[0]);
+        int servers = Integer.parseInt(args[1]);
+        int clients = Integer.parseInt(args[2]);
+
+        for (int i = 0; i < SENDERS; i++) {
+            int id = i;
+            Thread sender = new Thread(() -> heartbeats(id, servers), "heartbeat-" + i);
+            sender.setDaemon(true);
+            sender.start();
+        }
+        Thread.sleep(3000); // todos registados e com alguns intervalos no detetor
+
+        long heartbeatsBefore = heartbeats.get();
+        List<long[]> samples = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> samples.add(client()), "cliente-" + i);
+            threads[i].start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads)
+            thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] latencies = samples.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        long p50 = latencies.length > 0 ? latencies[latencies.length / 2] / 1000 : 0;
+        long p99 = latencies.length > 0 ? latencies[(int) (latencies.length * 0.99)] / 1000 : 0;
+        System.out.printf("servidores %d, heartbeats %.0f/s, pedidos %.0f/s, timeouts %d, p50 %d us, p99 %d us%n",
+                servers, (heartbeats.get() - heartbeatsBefore) / elapsed, answered.get() / elapsed,
+                timeouts.get(), p50, p99);
+        System.exit(0);
+    }
+
+    // cada thread faz de servers/SENDERS servidores, um heartbeat por servidor por segundo
+    private static void heartbeats(int id, int servers) {
+        int mine = Math.max(1, servers / SENDERS);
+        long period = 1_000_000_000L / mine;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            long next = System.nanoTime();
+            for (long n = 0;; n++) {
+                int server = id * mine + (int) (n % mine);
+                int port = FIRST_PORT + server;
+                int syncPort = port + 50000 > 65535 ? 1 : port + 50000;
+                String msg = "HEARTBEAT " + port + " " + (server == 0 ? 100 : 1) + " " + syncPort + " "
+                        + (server == 0 ? "P" : "B") + " 1 10 0";
+                byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(data, data.length, DIRECTORY, PORT));
+                heartbeats.incrementAndGet();
+                next += period;
+                long wait = next - System.nanoTime();
+                if (wait > 1_000_000)
+                    Thread.sleep(wait / 1_000_000);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // devolve as latencias (ns) dos pedidos respondidos
+    private static long[] client() {
+        long[] latencies = new long[MAX_SAMPLES];
+        int count = 0;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(500);
+            byte[] readRequest = "GET_READ_SERVER".getBytes(StandardCharsets.UTF_8);
+            byte[] primaryRequest = "GET_SERVER".getBytes(StandardCharsets.UTF_8);
+            byte[] buffer = new byte[256];
+            for (int i = 0; running.get(); i++) {
+                byte[] request = i % 2 == 0 ? readRequest : primaryRequest;
+                long sent = System.nanoTime();
+                socket.send(new DatagramPacket(request, request.length, DIRECTORY, PORT));
+                try {
+                    socket.receive(new DatagramPacket(buffer, buffer.length));
+                    answered.incrementAndGet();
+                    if (count < latencies.length)
+                        latencies[count++] = System.nanoTime() - sent;
+                } catch (SocketTimeoutException e) {
+                    timeouts.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+}
@@ -0,0 +1,215 @@
+package bench;
+
+import server.AnswerStore;
+import server.DatabaseManager;
+import server.QuestionStore;
+import server.Update;
+import server.UserStore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Leituras dos pedidos com e sem a cache de PreparedStatements por ligacao (StatementCache)
+    Uso: StatementCacheLoad <segundos por modo> <threads>
+    Cria uma base de dados temporaria com utilizadores, perguntas e respostas e faz em ciclo fechado
+    as leituras mais frequentes dos pedidos: pergunta por codigo, utilizador existe, aluno ja respondeu
+    e contagem de respostas, cada uma com uma ligacao emprestada da pool de leitura como no ClientHandler.
+    "antes" prepara e fecha o statement em cada query, "depois" usa as funcoes dos stores (em cache).
+    Mostra as queries por segundo e a latencia p50/p99 de cada modo.
+    Depois de mvn test-compile (com o sqlite-jdbc no classpath):
+    java -cp target/classes:target/test-classes:<sqlite-jdbc.jar> bench.StatementCacheLoad 10 8
+ */
+public class StatementCacheLoad {
+    private static final int USERS = 1000;
+    private static final int QUESTIONS = 1000;
+    private static final int ANSWERS_PER_QUESTION = 20;
+    private static final int MAX_SAMPLES = 2_000_000; // latencias guardadas por thread
+
+    // o mesmo SQL dos stores, preparado a cada utilizacao
+    private static final String FIND_BY_CODE = "SELECT * FROM questions WHERE access_code = ?";
+    private static final String USER_EXISTS = "SELECT 1 FROM users WHERE email = ?";
+    private static final String ANSWER_EXISTS = "SELECT 1 FROM answers WHERE question_id = ? AND student_email = ?";
+    private static final String COUNT = "SELECT COUNT(*) FROM answers WHERE question_id = ?";
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+    private static final AtomicLong queries = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Uso: StatementCacheLoad <segundos por modo> <threads>");
+            return;
+        }
+        int seconds = Integer.parseInt(args[0]);
+        int threads = Integer.parseInt(args[1]);
+
+        File dir = Files.createTempDirectory("pd-bench").toFile();
+        DatabaseManager db = new DatabaseManager(new File(dir, "bench.db").getPath());
+        db.connect();
+        populate(db);
+
+        run(db, "antes", false, seconds, threads); // tambem aquece a JVM e a cache de paginas
+        run(db, "depois", true, seconds, threads);
+        run(db, "antes", false, seconds, threads);
+        run(db, "depois", true, seconds, threads);
+
+        db.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+        System.exit(0);
+    }
+
+    private static void populate(DatabaseManager db) throws SQLException {
+        List<Update> batch = new ArrayList<>();
+        for (int u = 0; u < USERS; u++)
+            batch.add(UserStore.insert("aluno" + u, email(u), "pw", "STUDENT", String.valueOf(u), null));
+        for (int q = 1; q <= QUESTIONS; q++)
+            batch.add(QuestionStore.insert("pergunta " + q, "a,b,c,d", 0, 0, Long.MAX_VALUE, code(q), "prof@x.pt"));
+        db.executeUpdates(batch);
+        batch.clear();
+        for (int q = 1; q <= QUESTIONS; q++) {
+            for (int a = 0; a < ANSWERS_PER_QUESTION; a++)
+                batch.add(AnswerStore.insert(q, email((q * 7 + a) % USERS), a % 4, q));
+            if (batch.size() >= 1000) {
+                db.executeUpdates(batch);
+                batch.clear();
+            }
+        }
+        db.executeUpdates(batch);
+    }
+
+    private static void run(DatabaseManager db, String mode, boolean cached, int seconds, int threads)
+            throws InterruptedException {
+        List<long[]> samples = Collections.synchronizedList(new ArrayList<>());
+        queries.set(0);
+        running.set(true);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> samples.add(reader(db, cached)), "leitor-" + i);
+            workers[i].start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers)
+            worker.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] latencies = samples.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        long p50 = latencies.length > 0 ? latencies[latencies.length / 2] / 1000 : 0;
+        long p99 = latencies.length > 0 ? latencies[(int) (latencies.length * 0.99)] / 1000 : 0;
+        System.out.printf("%-6s %d threads: %.0f queries/s, p50 %d us, p99 %d us%n",
+                mode, threads, queries.get() / elapsed, p50, p99);
+    }
+
+    // devolve as latencias (ns) de cada query, com o emprestimo da ligacao incluido
+    private static long[] reader(DatabaseManager db, boolean cached) {
+        long[] latencies = new long[MAX_SAMPLES];
+        int count = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            for (int i = 0; running.get(); i++) {
+                int q = 1 + random.nextInt(QUESTIONS);
+                String email = email(random.nextInt(USERS));
+                long sent = System.nanoTime();
+                try (DatabaseManager.Lease lease = db.acquireReader()) {
+                    switch (i % 4) {
+                        case 0 -> findByCode(lease, code(q), cached);
+                        case 1 -> userExists(lease, email, cached);
+                        case 2 -> answerExists(lease, q, email, cached);
+                        default -> count(lease, q, cached);
+                    }
+                }
+                queries.incrementAndGet();
+                if (count < latencies.length)
+                    latencies[count++] = System.nanoTime() - sent;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static void findByCode(DatabaseManager.Lease lease, String code, boolean cached) throws SQLException {
+        if (cached) {
+            QuestionStore.findByAccessCode(lease, code);
+            return;
+        }
+        try (PreparedStatement ps = lease.connection().prepareStatement(FIND_BY_CODE)) {
+            ps.setString(1, code);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) { // as mesmas colunas que o QuestionStore.Question le
+                    rs.getInt("id");
+                    rs.getString("prompt");
+                    rs.getString("options");
+                    rs.getInt("correct_option");
+                    rs.getLong("start_time");
+                    rs.getLong("end_time");
+                    rs.getString("access_code");
+                    rs.getString("creator_email");
+                }
+            }
+        }
+    }
+
+    private static void userExists(DatabaseManager.Lease lease, String email, boolean cached) throws SQLException {
+        if (cached) {
+            UserStore.exists(lease, email);
+            return;
+        }
+        try (PreparedStatement ps = lease.connection().prepareStatement(USER_EXISTS)) {
+            ps.setString(1, email);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+            }
+        }
+    }
+
+    private static void answerExists(DatabaseManager.Lease lease, int question, String email, boolean cached)
+            throws SQLException {
+        if (cached) {
+            AnswerStore.exists(lease, question, email);
+            return;
+        }
+        try (PreparedStatement ps = lease.connection().prepareStatement(ANSWER_EXISTS)) {
+            ps.setInt(1, question);
+            ps.setString(2, email);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+            }
+        }
+    }
+
+    private static void count(DatabaseManager.Lease lease, int question, boolean cached) throws SQLException {
+        if (cached) {
+            AnswerStore.count(lease, question);
+            return;
+        }
+        try (PreparedStatement ps = lease.connection().prepareStatement(COUNT)) {
+            ps.setInt(1, question);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next())
+                    rs.getInt(1);
+            }
+        }
+    }
+
+    private static String email(int user) {
+        return "aluno" + user + "@x.pt";
+    }
+
+    private static String code(int question) {
+        return "Q" + question;
+    }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import common.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/*
+    Um erro inesperado no lote nao pode deixar quem escreveu bloqueado:
+    todas as unidades do lote terminam com erro e o escritor continua a servir.
+ */
+class GroupCommitWriterTest {
+    @TempDir
+    Path dir;
+
+    private DatabaseManager db;
+    private final Metrics metrics = new Metrics("teste");
+    private final AtomicBoolean failPublish = new AtomicBoolean();
+
+    @BeforeEach
+    void open() throws SQLException {
+        db = new DatabaseManager(dir.resolve("escrita.db").toString(), metrics);
+        db.connect();
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        db.close();
+    }
+
+    @Test
+    void runtimeFailureCompletesTheBatchAndWriterRecovers() {
+        GroupCommitWriter writer = new GroupCommitWriter(db, (version, update) -> {
+            if (failPublish.get())
+                throw new IllegalStateException("publicacao falhou");
+        }, 0, 16, 5000, metrics);
+        writer.start();
+
+        failPublish.set(true);
+        assertTimeoutPreemptively(Duration.ofSeconds(2),
+                () -> assertThrows(SQLException.class, () -> writer.execute(List.of(write(1)))));
+
+        failPublish.set(false);
+        assertTimeoutPreemptively(Duration.ofSeconds(2), () -> writer.execute(List.of(write(2))));
+    }
+
+    @Test
+    void waitForTheCommitIsBounded() {
+        // sem start(): nenhum lote e aplicado e o pedido tem de desistir
+        GroupCommitWriter writer = new GroupCommitWriter(db, (version, update) -> {
+        }, 0, 16, 100, metrics);
+        assertTimeoutPreemptively(Duration.ofSeconds(2),
+                () -> assertThrows(SQLException.class, () -> writer.execute(List.of(write(1)))));
+        assertEquals(1, metrics.get("escrita.timeouts"));
+    }
+
+    private static Update write(int n) {
+        return UserStore.insert("u" + n, "u" + n + "@x.pt", "pw", "STUDENT", String.valueOf(n), null);
+    }
+}
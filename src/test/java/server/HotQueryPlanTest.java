@@ -0,0 +1,138 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    As consultas e escritas dos pedidos frequentes tem de usar um indice:
+    nenhuma linha do EXPLAIN QUERY PLAN pode ser um SCAN da tabela inteira.
+    Corre sobre o esquema criado pelo connect() (tabelas e migracoes) e apanha por reflexao
+    todo o SQL dos stores: as constantes, as variantes do historico e as escritas.
+ */
+class HotQueryPlanTest {
+    private static final Class<?>[] STORES =
+            { QuestionStore.class, AnswerStore.class, UserStore.class, ReplicationLog.class, DatabaseManager.class };
+    // SCAN intencional: o LIST sem filtro devolve todas as perguntas
+    private static final Set<String> FULL_SCANS = Set.of("QuestionStore.LIST_ALL");
+
+    @TempDir
+    Path dir;
+
+    private DatabaseManager db;
+    private DatabaseManager.Lease lease;
+
+    @BeforeEach
+    void open() throws SQLException {
+        db = new DatabaseManager(dir.resolve("plano.db").toString());
+        db.connect();
+        lease = db.acquireReader();
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        lease.close();
+        db.close();
+    }
+
+    @Test
+    void storeQueriesUseIndexes() throws Exception {
+        Map<String, String> queries = storeSql();
+        assertTrue(queries.keySet().containsAll(FULL_SCANS), () -> "lista de SCAN desatualizada: " + queries.keySet());
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            if (FULL_SCANS.contains(query.getKey()))
+                assertTrue(plan(query.getValue()).stream().anyMatch(step -> step.startsWith("SCAN")), query.getKey());
+            else
+                assertSearch(query.getValue());
+        }
+    }
+
+    @Test
+    void historyFiltersUseIndexes() throws SQLException {
+        for (String filter : new String[] { "ALL", "CORRECT", "INCORRECT", "LAST_24H" })
+            assertSearch(AnswerStore.historySql(filter));
+    }
+
+    @Test
+    void writesFindTheirRowsByIndex() throws Exception {
+        int checked = 0;
+        for (Class<?> store : STORES) {
+            for (Method method : store.getDeclaredMethods()) {
+                if (!Modifier.isStatic(method.getModifiers()) || method.getReturnType() != Update.class)
+                    continue;
+                Update update = (Update) method.invoke(null, arguments(method));
+                String sql = update.getSql();
+                if (sql.startsWith("UPDATE") || sql.startsWith("DELETE")) {
+                    assertSearch(sql);
+                    checked++;
+                }
+            }
+        }
+        assertTrue(checked > 0);
+    }
+
+    // todas as constantes SQL com tabela (SELECT, UPDATE, DELETE) dos stores, por "Classe.CAMPO"
+    private static Map<String, String> storeSql() throws IllegalAccessException {
+        Map<String, String> queries = new TreeMap<>();
+        for (Class<?> store : STORES) {
+            for (Field field : store.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) || !Modifier.isFinal(modifiers) || field.getType() != String.class)
+                    continue;
+                field.setAccessible(true);
+                String sql = (String) field.get(null);
+                if (sql.startsWith("UPDATE ") || sql.startsWith("DELETE ")
+                        || (sql.startsWith("SELECT ") && sql.contains(" FROM ")))
+                    queries.put(store.getSimpleName() + "." + field.getName(), sql);
+            }
+        }
+        return queries;
+    }
+
+    // valores quaisquer nao nulos, para o Update ter todas as colunas
+    private static Object[] arguments(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        Object[] values = new Object[types.length];
+        for (int i = 0; i < types.length; i++)
+            values[i] = types[i] == int.class ? 1 : types[i] == long.class ? 1L : "x";
+        return values;
+    }
+
+    // o plano nao tem SCAN de tabelas (o SELECT sem FROM a volta de subqueries e SCAN CONSTANT ROW)
+    // e tem pelo menos uma procura por indice
+    private void assertSearch(String sql) throws SQLException {
+        List<String> plan = plan(sql);
+        for (String step : plan)
+            assertFalse(step.startsWith("SCAN") && !step.equals("SCAN CONSTANT ROW"),
+                    () -> "SCAN em \"" + sql + "\": " + plan);
+        assertTrue(plan.stream().anyMatch(step -> step.startsWith("SEARCH")),
+                () -> "sem SEARCH em \"" + sql + "\": " + plan);
+    }
+
+    private List<String> plan(String sql) throws SQLException {
+        List<String> steps = new ArrayList<>();
+        try (PreparedStatement ps = lease.connection().prepareStatement("EXPLAIN QUERY PLAN " + sql);
+                ResultSet rs = ps.executeQuery()) {
+            while (rs.next())
+                steps.add(rs.getString("detail"));
+        }
+        return steps;
+    }
+}
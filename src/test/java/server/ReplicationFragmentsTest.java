@@ -0,0 +1,87 @@
+package server;
+
+import common.Metrics;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    Uma escrita de 64 KB partida em datagramas tem de ser reconstruida igual
+    com os fragmentos fora de ordem, duplicados e misturados com outra versao.
+ */
+class ReplicationFragmentsTest {
+    private static final int DATAGRAM = 1400;
+
+    private final ReplicationFragments fragments = new ReplicationFragments(60_000, new Metrics("teste"));
+
+    @Test
+    void reassemblesLargeChangeOutOfOrder() throws IOException {
+        Update big = bigUpdate(7, 64 * 1024);
+        byte[] change = big.encode();
+        List<byte[]> parts = ReplicationFragments.split(41, change, DATAGRAM);
+        assertTrue(parts.size() > 40, "a escrita devia ocupar varios datagramas");
+        for (byte[] part : parts)
+            assertTrue(part.length <= DATAGRAM);
+        Collections.shuffle(parts, new Random(2526));
+
+        byte[] last = deliver(parts);
+        assertArrayEquals(change, last);
+        assertEquals(big.toString(), Update.decode(last).toString());
+        assertEquals(41, ReplicationFragments.versionOf(parts.get(0)));
+    }
+
+    @Test
+    void interleavedVersionsAndDuplicatesAreReassembledOnce() {
+        byte[] first = bigUpdate(1, 64 * 1024).encode();
+        byte[] second = bigUpdate(2, 20 * 1024).encode();
+        List<byte[]> parts = new ArrayList<>(ReplicationFragments.split(10, first, DATAGRAM));
+        parts.addAll(ReplicationFragments.split(11, second, DATAGRAM));
+        parts.addAll(parts.subList(0, 5)); // retransmitidos pela rede
+        Collections.shuffle(parts, new Random(9));
+
+        List<byte[]> done = new ArrayList<>();
+        for (byte[] part : parts) {
+            byte[] change = fragments.offer(part, part.length);
+            if (change != null)
+                done.add(change);
+        }
+        assertEquals(2, done.size(), "cada versao so e entregue uma vez");
+        for (byte[] change : done)
+            assertTrue(Arrays.equals(change, first) || Arrays.equals(change, second));
+    }
+
+    @Test
+    void incompleteChangeIsNotDelivered() {
+        List<byte[]> parts = ReplicationFragments.split(5, bigUpdate(3, 64 * 1024).encode(), DATAGRAM);
+        parts.remove(parts.size() / 2);
+        Collections.shuffle(parts, new Random(1));
+        for (byte[] part : parts)
+            assertNull(fragments.offer(part, part.length));
+    }
+
+    // entrega todos os fragmentos; so o ultimo pode completar a escrita
+    private byte[] deliver(List<byte[]> parts) {
+        for (int i = 0; i < parts.size() - 1; i++)
+            assertNull(fragments.offer(parts.get(i), parts.get(i).length));
+        byte[] lastPart = parts.get(parts.size() - 1);
+        return fragments.offer(lastPart, lastPart.length);
+    }
+
+    private static Update bigUpdate(int id, int size) {
+        StringBuilder prompt = new StringBuilder(size);
+        Random random = new Random(id);
+        while (prompt.length() < size)
+            prompt.append((char) ('a' + random.nextInt(26)));
+        return QuestionStore.update(id, prompt.toString(), "a,b,c", 1, 0, 60);
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import common.Constants;
+import common.FrameCodec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    Uma escrita acima do limite do multicast so chega aos backups pelo log:
+    o stream do catch-up tem de a aceitar e o primario recusa as que nem ai cabem.
+ */
+class ReplicationLogTest {
+    @TempDir
+    Path dir;
+
+    private DatabaseManager db;
+
+    @BeforeEach
+    void open() throws SQLException {
+        db = new DatabaseManager(dir.resolve("primario.db").toString());
+        db.connect();
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        db.close();
+    }
+
+    @Test
+    void entryAboveTheMulticastLimitCrossesTheCatchUpStream() throws Exception {
+        int size = Math.max(Constants.REPLICATION_MULTICAST_LIMIT, FrameCodec.MAX_FRAME_SIZE) + 1024;
+        db.executeUpdates(List.of(question(size)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<byte[]> logged = new ArrayList<>();
+        try (DatabaseManager.Lease lease = db.acquireReader()) { // como o primario no CATCHUP
+            ReplicationLog.forEach(lease, 0, db.getDbVersion(), (version, change) -> {
+                logged.add(change);
+                ReplicationLog.writeEntry(out, version, change);
+            });
+        }
+        ReplicationLog.endStream(out);
+
+        List<byte[]> received = new ArrayList<>();
+        ReplicationLog.readStream(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                (version, change) -> received.add(change));
+        assertEquals(1, received.size());
+        assertTrue(received.get(0).length > size);
+        assertArrayEquals(logged.get(0), received.get(0));
+
+        DatabaseManager backup = new DatabaseManager(dir.resolve("backup.db").toString());
+        backup.connect();
+        try {
+            backup.applyReplicated(List.of(Update.decode(received.get(0))));
+            assertEquals(db.getDbVersion(), backup.getDbVersion());
+            try (DatabaseManager.Lease lease = backup.acquireReader()) {
+                assertEquals(size, QuestionStore.findByAccessCode(lease, "Q1").prompt.length());
+            }
+        } finally {
+            backup.close();
+        }
+    }
+
+    @Test
+    void writeAboveTheEntryLimitIsRefusedOnThePrimary() throws Exception {
+        int before = db.getDbVersion();
+        assertThrows(SQLException.class,
+                () -> db.executeUpdates(List.of(question(Constants.REPLICATION_ENTRY_LIMIT + 1))));
+        assertEquals(before, db.getDbVersion());
+        try (DatabaseManager.Lease lease = db.acquireReader()) {
+            assertEquals(before, ReplicationLog.forEach(lease, before, Integer.MAX_VALUE, (version, change) -> {
+            }));
+        }
+    }
+
+    private static Update question(int promptSize) {
+        return QuestionStore.insert("x".repeat(promptSize), "a,b", 0, 0, Long.MAX_VALUE, "Q1", "prof@x.pt");
+    }
+}
@@ -0,0 +1,81 @@
+package server;
+
+import common.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    O heartbeat do primario anuncia a versao do commit antes de o multicast sair:
+    um backup atras so por isso nao pode abrir lacuna nem pedir retransmissao.
+ */
+class ReplicationReceiverTest {
+    private static final int GRACE_MILLIS = 50;
+
+    @TempDir
+    Path dir;
+
+    private DatabaseManager db;
+    private final Metrics metrics = new Metrics("teste");
+    private final List<Runnable> retransmits = new ArrayList<>(); // tarefas de recuperacao pedidas
+    private ReplicationReceiver receiver;
+
+    @BeforeEach
+    void open() throws SQLException {
+        db = new DatabaseManager(dir.resolve("backup.db").toString(), metrics);
+        db.connect();
+        receiver = new ReplicationReceiver(db, db::applyReplicated, () -> null, () -> {
+        }, retransmits::add, metrics, 64, GRACE_MILLIS);
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        db.close();
+    }
+
+    @Test
+    void heartbeatAheadOfInFlightUpdatesIsNotAGap() throws Exception {
+        receiver.onPrimaryVersion(2); // o heartbeat chega antes das escritas
+        receiver.onUpdates(1, List.of(write(1), write(2)));
+        Thread.sleep(GRACE_MILLIS * 2);
+        receiver.onPrimaryVersion(4); // carga continua: sempre um pouco a frente
+        receiver.onUpdates(3, List.of(write(3), write(4)));
+        Thread.sleep(GRACE_MILLIS * 2);
+        receiver.onPrimaryVersion(4);
+
+        assertEquals(0, metrics.get("replicacao.lacunas"));
+        assertEquals(0, retransmits.size());
+        assertEquals(4, db.getDbVersion());
+    }
+
+    @Test
+    void lagThatOutlivesTheGraceOpensAGap() throws Exception {
+        receiver.onPrimaryVersion(3);
+        receiver.onPrimaryVersion(3); // ainda dentro da tolerancia
+        assertEquals(0, retransmits.size());
+
+        Thread.sleep(GRACE_MILLIS * 2);
+        receiver.onPrimaryVersion(3); // as escritas nunca chegaram
+        assertEquals(1, metrics.get("replicacao.lacunas"));
+        assertEquals(1, retransmits.size());
+    }
+
+    @Test
+    void newPrimaryAheadOpensTheGapAtOnce() {
+        receiver.onPrimaryChanged(5);
+        assertEquals(1, metrics.get("replicacao.lacunas"));
+        assertEquals(1, retransmits.size());
+    }
+
+    private static Update write(int n) {
+        return UserStore.insert("u" + n, "u" + n + "@x.pt", "pw", "STUDENT", String.valueOf(n), null);
+    }
+}
@@ -0,0 +1,227 @@
+package server;
+
+import common.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+    Copia por diferencas entre um primario e um backup com quase tudo igual:
+    o resultado tem de ser igual byte a byte a copia do primario e so as paginas
+    que o backup nao tem podem seguir pela rede; se o delta falhar vai a copia completa.
+ */
+class SnapshotTransferTest {
+    private static final int QUESTIONS = 2000;
+
+    @TempDir
+    Path dir;
+
+    private final Metrics primaryMetrics = new Metrics("primario");
+    private final Metrics backupMetrics = new Metrics("backup");
+    private final List<DatabaseManager> open = new ArrayList<>();
+    private ServerSocketChannel server;
+
+    @AfterEach
+    void close() throws Exception {
+        if (server != null)
+            server.close();
+        for (DatabaseManager db : open)
+            db.close();
+    }
+
+    @Test
+    void deltaOfMostlyUnchangedDatabaseIsExactAndSendsOnlyChangedPages() throws Exception {
+        DatabaseManager primary = database("primario.db", 0);
+        DatabaseManager backup = database("backup.db", 0);
+        primary.executeUpdates(List.of(
+                AnswerStore.insert(1, "aluno@x.pt", 2, 100),
+                QuestionStore.update(QUESTIONS / 2, "pergunta alterada", "a,b", 1, 0, Long.MAX_VALUE)));
+
+        SnapshotTransfer source = new SnapshotTransfer(primary, primaryMetrics);
+        File expected = source.snapshot(-1).file;
+        long changed = pagesMissingFrom(expected, backup);
+        File target = receive(source, backup, false);
+
+        assertEquals(-1L, Files.mismatch(target.toPath(), expected.toPath()));
+        assertEquals(0, backupMetrics.get("sync.delta_falhadas"));
+        long pages = expected.length() / SnapshotTransfer.pageSize(expected);
+        assertEquals(changed, primaryMetrics.get("sync.delta_paginas_enviadas"));
+        assertEquals(changed, backupMetrics.get("sync.delta_paginas_recebidas"));
+        assertEquals(pages - changed, primaryMetrics.get("sync.delta_paginas_reutilizadas"));
+        assertTrue(changed > 0 && changed < pages / 10, changed + " de " + pages + " paginas enviadas");
+    }
+
+    @Test
+    void backupWithDifferentPageSizeGetsEveryPage() throws Exception {
+        DatabaseManager primary = database("primario.db", 0);
+        DatabaseManager backup = database("backup.db", 65536); // a ultima pagina do primario fica a meio
+        SnapshotTransfer source = new SnapshotTransfer(primary, primaryMetrics);
+        File expected = source.snapshot(-1).file;
+        assertTrue(expected.length() % 65536 != 0);
+
+        File target = receive(source, backup, false);
+
+        assertEquals(-1L, Files.mismatch(target.toPath(), expected.toPath()));
+        assertEquals(0, backupMetrics.get("sync.delta_falhadas"));
+        assertEquals(0, primaryMetrics.get("sync.delta_paginas_reutilizadas"));
+        assertEquals((expected.length() + 65535) / 65536, primaryMetrics.get("sync.delta_paginas_enviadas"));
+    }
+
+    @Test
+    void primarySmallerThanBackupTruncatesTheTail() throws Exception {
+        DatabaseManager primary = database("primario.db", 0);
+        DatabaseManager backup = database("backup.db", 0);
+        List<Update> deletes = new ArrayList<>();
+        for (int id = QUESTIONS / 2; id <= QUESTIONS; id++)
+            deletes.add(QuestionStore.delete(id));
+        primary.executeUpdates(deletes);
+
+        SnapshotTransfer source = new SnapshotTransfer(primary, primaryMetrics);
+        File expected = source.snapshot(-1).file;
+        File base = dir.resolve("base.db").toFile(); // a copia de onde o backup parte
+        backup.snapshotTo(base);
+        assertTrue(expected.length() < base.length());
+        File target = receive(source, backup, false);
+
+        assertEquals(-1L, Files.mismatch(target.toPath(), expected.toPath()));
+        assertEquals(0, backupMetrics.get("sync.delta_falhadas"));
+    }
+
+    @Test
+    void checksumFailureFallsBackToTheFullCopy() throws Exception {
+        DatabaseManager primary = database("primario.db", 0);
+        DatabaseManager backup = database("backup.db", 0);
+        primary.executeUpdates(List.of(AnswerStore.insert(1, "aluno@x.pt", 2, 100)));
+
+        SnapshotTransfer source = new SnapshotTransfer(primary, primaryMetrics);
+        File expected = source.snapshot(-1).file;
+        File target = receive(source, backup, true);
+
+        assertEquals(-1L, Files.mismatch(target.toPath(), expected.toPath()));
+        assertEquals(1, backupMetrics.get("sync.snapshot_crc_erros"));
+        assertEquals(1, backupMetrics.get("sync.delta_falhadas"));
+        assertEquals(1, primaryMetrics.get("sync.snapshots")); // a copia completa
+    }
+
+    // base de dados com as mesmas perguntas em todos os testes; pageSize 0 usa o do SQLite
+    private DatabaseManager database(String name, int pageSize) throws SQLException {
+        String path = dir.resolve(name).toString();
+        if (pageSize > 0) { // so tem efeito antes da primeira tabela
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+                    Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA page_size=" + pageSize);
+                stmt.execute("VACUUM");
+            }
+        }
+        DatabaseManager db = new DatabaseManager(path);
+        db.connect();
+        open.add(db);
+        List<Update> questions = new ArrayList<>();
+        for (int q = 1; q <= QUESTIONS; q++)
+            questions.add(QuestionStore.insert("pergunta " + q + " " + "x".repeat(q % 200), "a,b,c,d", q % 4,
+                    0, Long.MAX_VALUE, "Q" + q, "prof@x.pt"));
+        db.executeUpdates(questions);
+        return db;
+    }
+
+    // faz de primario na porta de sincronizacao (DELTA e SNAPSHOT, como o Server) e recebe a copia no backup
+    private File receive(SnapshotTransfer source, DatabaseManager backup, boolean corruptDelta) throws Exception {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread primary = new Thread(() -> serve(source, corruptDelta), "sync-teste");
+        primary.setDaemon(true);
+        primary.start();
+        File target = dir.resolve("recebida.db").toFile();
+        new SnapshotTransfer(backup, backupMetrics)
+                .receiveLatest((InetSocketAddress) server.getLocalAddress(), target, true);
+        return target;
+    }
+
+    private void serve(SnapshotTransfer source, boolean corruptDelta) {
+        while (server.isOpen()) {
+            try (SocketChannel client = server.accept();
+                    DataInputStream in = new DataInputStream(client.socket().getInputStream())) {
+                String request = in.readUTF();
+                String[] parts = request.split(" ");
+                if (request.startsWith("DELTA ")) {
+                    OutputStream raw = client.socket().getOutputStream();
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                            corruptDelta ? new CorruptCrc(raw) : raw));
+                    source.sendDelta(in, out, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                    out.flush();
+                } else if (request.startsWith("SNAPSHOT ")) {
+                    source.send(client, Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+                }
+            } catch (IOException | SQLException e) {
+                // servidor fechado no fim do teste
+            }
+        }
+    }
+
+    // numero de paginas da copia do primario que nao existem (com o mesmo conteudo) na do backup
+    private long pagesMissingFrom(File expected, DatabaseManager backup) throws Exception {
+        File base = dir.resolve("base.db").toFile();
+        backup.snapshotTo(base);
+        int pageSize = SnapshotTransfer.pageSize(base);
+        Set<String> have = new HashSet<>();
+        byte[] bytes = Files.readAllBytes(base.toPath());
+        for (int offset = 0; offset < bytes.length; offset += pageSize)
+            have.add(Arrays.toString(Arrays.copyOfRange(bytes, offset, offset + pageSize)));
+        long missing = 0;
+        bytes = Files.readAllBytes(expected.toPath());
+        for (int offset = 0; offset < bytes.length; offset += pageSize)
+            if (!have.contains(Arrays.toString(Arrays.copyOfRange(bytes, offset, offset + pageSize))))
+                missing++;
+        base.delete();
+        return missing;
+    }
+
+    // troca um byte do crc32 no cabecalho do delta (<versao> <tamanho> <crc32>)
+    private static final class CorruptCrc extends FilterOutputStream {
+        private static final int CRC_OFFSET = 4 + 8;
+        private long written = 0;
+
+        CorruptCrc(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(written++ == CRC_OFFSET ? b ^ 0xFF : b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written <= CRC_OFFSET && CRC_OFFSET < written + len) {
+                b = b.clone();
+                b[off + (int) (CRC_OFFSET - written)] ^= (byte) 0xFF;
+            }
+            written += len;
+            out.write(b, off, len);
+        }
+    }
+}